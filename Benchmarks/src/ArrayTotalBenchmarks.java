@@ -0,0 +1,64 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares totaling an array of random numbers in one thread against creating
+ * several threads to total it, using {@link RandomArrayTotal}. Small arrays
+ * show the cost of creating threads; large arrays show the speedup.
+ *
+ * @see RandomArrayTotal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ArrayTotalBenchmarks {
+
+	/** Number of elements in the array. */
+	@Param({ "1000", "1000000", "10000000" })
+	public int size;
+
+	private int[] numbers;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		numbers = new int[size];
+		RandomArrayTotal.fillRandom(numbers, 100);
+	}
+
+	@Benchmark
+	public long single() {
+		return RandomArrayTotal.total(numbers);
+	}
+
+	/**
+	 * Only used by the multithreaded benchmark, so the single-threaded one is
+	 * not repeated for each number of threads.
+	 */
+	@State(Scope.Benchmark)
+	public static class Threads {
+
+		/** Number of threads to total the array with. */
+		@Param({ "1", "2", "4", "8" })
+		public int threads;
+	}
+
+	@Benchmark
+	public long multithreaded(Threads workers) throws InterruptedException {
+		return RandomArrayTotal.total(numbers, workers.threads);
+	}
+}
@@ -0,0 +1,46 @@
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks in this project. These replace the hand-rolled
+ * timing loops in {@code ListingBenchmark}, {@code CharacterBenchmark},
+ * {@code RandomArrayTotal} and {@code SetDemo}, which use a fixed number of
+ * warmup rounds and are easily thrown off by the JIT compiler. JMH forks a
+ * fresh JVM for each benchmark, warms up until results settle, and reports the
+ * error of each result.
+ *
+ * Each benchmark reports both throughput and average time, and the GC
+ * profiler adds the allocation rate ({@code gc.alloc.rate.norm} is the number
+ * of bytes allocated per operation).
+ *
+ * This project needs the {@code jmh} user library (with {@code jmh-core} and
+ * its dependencies) and the {@code JMH_HOME} classpath variable pointing to
+ * the folder with {@code jmh-generator-annprocess.jar}, which Eclipse uses to
+ * generate the benchmark code when annotation processing is enabled. Make
+ * sure logging is disabled (see {@code log4j2.xml}) before running.
+ *
+ * @see <a href="https://github.com/openjdk/jmh">JMH</a>
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * Runs the benchmarks with names matching the first argument (a regular
+	 * expression), or every benchmark if there are no arguments.
+	 *
+	 * @param args
+	 *            optional regular expression of benchmarks to run
+	 * @throws RunnerException
+	 *             if unable to run the benchmarks
+	 */
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : ".*Benchmarks")
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares counting characters in two text files one after another and at the
+ * same time, using the character counters from the debugging examples.
+ *
+ * @see CharacterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CharacterCountBenchmarks {
+
+	/** Folder with the text files from the debugging examples. */
+	@Param({ "../Debugging/text" })
+	public String text;
+
+	/** Character to count. */
+	@Param({ "c", "e" })
+	public char character;
+
+	private Path file1;
+	private Path file2;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		file1 = Paths.get(text, "pg1661.txt");
+		file2 = Paths.get(text, "pg2701.txt");
+	}
+
+	@Benchmark
+	public int findCharacter() throws IOException {
+		return CharacterFinder.findCharacter(file1, character, true);
+	}
+
+	@Benchmark
+	public int compareSequentially() {
+		return CharacterCompare.compareSequentially(file1, file2, character);
+	}
+
+	@Benchmark
+	public int compareConcurrently() {
+		return CharacterCompare.compareConcurrently(file1, file2, character);
+	}
+}
@@ -0,0 +1,135 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the serial, work queue, executor, futures, fork/join, and streaming
+ * directory listings from the multithreading demos. The executor listing
+ * always uses its own fixed number of threads, so only the other
+ * multithreaded listings are run for each number of threads. Instead, the
+ * executor listing is run for each way of combining the results of its
+ * tasks.
+ *
+ * @see ListingBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DirectoryListingBenchmarks {
+
+	/** Directory to list; change this to a large directory on your system! */
+	@Param({ "..", "../.." })
+	public String directory;
+
+	private Path path;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		path = Paths.get(directory).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Work queue and fork/join pool for the multithreaded listings. Only used
+	 * by those benchmarks, so the others are not repeated for each number of
+	 * threads.
+	 */
+	@State(Scope.Benchmark)
+	public static class Queue {
+
+		/** Number of worker threads. */
+		@Param({ "1", "2", "4", "8" })
+		public int threads;
+
+		private WorkQueue queue;
+		private ForkJoinPool pool;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			queue = new WorkQueue(threads);
+			pool = new ForkJoinPool(threads);
+		}
+
+		@TearDown(Level.Trial)
+		public void teardown() {
+			queue.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	@Benchmark
+	public Set<Path> serial() {
+		return SerialDirectoryListing.list(path);
+	}
+
+	@Benchmark
+	public Set<Path> workQueue(Queue workers) {
+		return WorkQueueDirectoryListing.list(path, workers.queue);
+	}
+
+	/**
+	 * How the executor listing combines the results of its tasks. Only used by
+	 * that benchmark, so the others are not repeated for each aggregation.
+	 */
+	@State(Scope.Benchmark)
+	public static class Aggregation {
+
+		/** Name of the aggregation to use. */
+		@Param({ "SYNCHRONIZED", "CONCURRENT", "BUFFERED" })
+		public ExecutorDirectoryListing.Aggregation aggregation;
+	}
+
+	@Benchmark
+	public Set<Path> executor(Aggregation combine) {
+		return ExecutorDirectoryListing.list(path, combine.aggregation);
+	}
+
+	@Benchmark
+	public Set<Path> futures(Queue workers) {
+		return FuturesDirectoryListing.list(path, workers.queue);
+	}
+
+	@Benchmark
+	public Set<Path> futuresCompact(Queue workers) {
+		return FuturesDirectoryListing.list(path, workers.queue, true);
+	}
+
+	@Benchmark
+	public Set<Path> forkJoin(Queue workers) {
+		return ForkJoinDirectoryListing.list(path, workers.pool);
+	}
+
+	@Benchmark
+	public long serialStream() {
+		try (Stream<Path> paths = SerialDirectoryListing.stream(path)) {
+			return paths.count();
+		}
+	}
+
+	@Benchmark
+	public long streaming(Queue workers) {
+		try (Stream<Path> paths = StreamingDirectoryListing.stream(path, workers.queue,
+				StreamingDirectoryListing.CAPACITY)) {
+			return paths.count();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the three {@link IndexedSet} variants from the synchronization
+ * demos. The single-threaded benchmarks compare the overhead of locking when
+ * there is no contention. The {@code mixed} group has one thread adding
+ * elements while others make copies, like {@code SetDemo.timeMulti}, so it
+ * only runs for the thread-safe sets.
+ *
+ * @see SetDemo
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class IndexedSetBenchmarks {
+
+	/**
+	 * Creates the specified set variant.
+	 *
+	 * @param type
+	 *            one of "indexed", "synchronized", or "concurrent"
+	 * @return new empty set
+	 */
+	private static IndexedSet<String> create(String type) {
+		switch (type) {
+			case "synchronized":
+				return new SynchronizedSet<>();
+			case "concurrent":
+				return new ConcurrentSet<>();
+			default:
+				return new IndexedSet<>();
+		}
+	}
+
+	/**
+	 * Data shared by the single-threaded benchmarks.
+	 */
+	@State(Scope.Thread)
+	public static class Single {
+
+		@Param({ "indexed", "synchronized", "concurrent" })
+		public String type;
+
+		@Param({ "1000", "100000" })
+		public int size;
+
+		private ArrayList<String> data;
+		private IndexedSet<String> full;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			data = SetDemo.generateData(size);
+			full = create(type);
+			full.addAll(data);
+		}
+	}
+
+	@Benchmark
+	public IndexedSet<String> addAll(Single state) {
+		IndexedSet<String> set = create(state.type);
+		set.addAll(state.data);
+		return set;
+	}
+
+	@Benchmark
+	public String get(Single state) {
+		return state.full.get(ThreadLocalRandom.current().nextInt(state.size));
+	}
+
+	@Benchmark
+	public SortedSet<String> sortedCopy(Single state) {
+		return state.full.sortedCopy();
+	}
+
+	/**
+	 * Set shared by the threads in the {@code mixed} group. Only the
+	 * thread-safe variants are included.
+	 */
+	@State(Scope.Group)
+	public static class Shared {
+
+		@Param({ "synchronized", "concurrent" })
+		public String type;
+
+		@Param({ "1000", "100000" })
+		public int size;
+
+		private ArrayList<String> data;
+		private IndexedSet<String> set;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			data = SetDemo.generateData(size);
+			set = create(type);
+		}
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public boolean mixedAdd(Shared state) {
+		// the set stops growing once every element has been added
+		return state.set.add(state.data.get(ThreadLocalRandom.current().nextInt(state.size)));
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public SortedSet<String> mixedSortedCopy(Shared state) {
+		return state.set.sortedCopy();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public Set<String> mixedUnsortedCopy(Shared state) {
+		return state.set.unsortedCopy();
+	}
+}
@@ -0,0 +1,579 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A set of paths that uses much less memory than a {@link java.util.HashSet}
+ * for large directory listings. Instead of keeping a {@link Path} object (and
+ * a hash table entry) for every path, each path is stored as the index of its
+ * parent plus the id of its file name in a few primitive arrays. Each distinct
+ * file name is only stored once, as UTF-8 in one large byte array, no matter how
+ * many directories it appears in. Path objects are only created as the set is
+ * iterated through.
+ *
+ * <p>
+ * Parents of the paths added are stored as well (but are not members of the
+ * set unless added themselves), and removing a path only marks it as no longer
+ * being a member. Paths are converted back using the default file system. The
+ * rare file names that are not valid in the default character set are kept as
+ * path objects instead, so they are still converted back exactly.
+ *
+ * <p>
+ * This set is NOT thread-safe; use {@link #addAll(Collection)} to combine the
+ * results of several threads. Adding all of another compact set is faster than
+ * adding its paths one at a time, since no path objects are created.
+ *
+ * @see FuturesDirectoryListing#list(Path, WorkQueue, boolean)
+ */
+public class CompactPathSet extends AbstractSet<Path> {
+
+	/** Initial number of paths (and parents) the set has room for. */
+	public static final int CAPACITY = 64;
+
+	/**
+	 * Creates an empty set.
+	 */
+	public CompactPathSet() {
+		this.undecoded = new HashMap<>();
+		this.undecodedIds = new HashMap<>();
+		clear();
+	}
+
+	/**
+	 * Creates a set with all of the given paths.
+	 *
+	 * @param paths
+	 *            paths to add
+	 */
+	public CompactPathSet(Collection<? extends Path> paths) {
+		this();
+		addAll(paths);
+	}
+
+	@Override
+	public boolean add(Path path) {
+		int id = node(path, true);
+
+		if (members.get(id)) {
+			return false;
+		}
+
+		members.set(id);
+		size++;
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Path> paths) {
+		if (!(paths instanceof CompactPathSet)) {
+			return super.addAll(paths);
+		}
+
+		CompactPathSet other = (CompactPathSet) paths;
+		boolean changed = false;
+
+		// parents are always stored before their children, so every parent
+		// has already been copied by the time one of its children is reached
+		int[] copied = new int[other.nodes];
+		int[] copiedNames = new int[other.nameCount];
+		Arrays.fill(copiedNames, NONE);
+
+		for (int i = 0; i < other.nodes; i++) {
+			int name = other.names[i];
+
+			if (copiedNames[name] == NONE) {
+				Path path = other.undecoded.get(name);
+				copiedNames[name] = path != null ? undecoded(path, true) : name(other.encoded(name), true);
+			}
+
+			int parent = other.parents[i] == NONE ? NONE : copied[other.parents[i]];
+			copied[i] = insert(parent, copiedNames[name]);
+
+			if (other.members.get(i) && !members.get(copied[i])) {
+				members.set(copied[i]);
+				size++;
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+
+	@Override
+	public boolean contains(Object object) {
+		if (!(object instanceof Path)) {
+			return false;
+		}
+
+		int id = node((Path) object, false);
+		return id != NONE && members.get(id);
+	}
+
+	@Override
+	public boolean remove(Object object) {
+		if (!(object instanceof Path)) {
+			return false;
+		}
+
+		int id = node((Path) object, false);
+
+		if (id == NONE || !members.get(id)) {
+			return false;
+		}
+
+		members.clear(id);
+		size--;
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		this.parents = new int[CAPACITY];
+		this.names = new int[CAPACITY];
+		this.members = new BitSet(CAPACITY);
+		this.table = new int[CAPACITY * 2];
+		this.nodes = 0;
+		this.size = 0;
+
+		this.bytes = new byte[CAPACITY * 8];
+		this.starts = new int[CAPACITY + 1];
+		this.nameTable = new int[CAPACITY * 2];
+		this.nameCount = 0;
+
+		this.lastParent = null;
+		this.lastParentId = NONE;
+
+		undecoded.clear();
+		undecodedIds.clear();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		return new Iterator<Path>() {
+			private int next = members.nextSetBit(0);
+			private int last = NONE;
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public Path next() {
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+
+				last = next;
+				next = members.nextSetBit(next + 1);
+				return path(last);
+			}
+
+			@Override
+			public void remove() {
+				if (last == NONE || !members.get(last)) {
+					throw new IllegalStateException();
+				}
+
+				members.clear(last);
+				size--;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of distinct file names stored. Each one is only
+	 * stored once, no matter how many paths use it.
+	 *
+	 * @return number of distinct file names
+	 */
+	public int names() {
+		return nameCount;
+	}
+
+	/**
+	 * Returns the number of paths stored, including parents that are not
+	 * members of the set.
+	 *
+	 * @return number of paths stored
+	 */
+	public int nodes() {
+		return nodes;
+	}
+
+	/**
+	 * Tests how many paths and distinct names are needed for the current
+	 * directory.
+	 *
+	 * @param args
+	 *            unused
+	 */
+	public static void main(String[] args) {
+		Set<Path> paths = SerialDirectoryListing.list(Paths.get(".").toAbsolutePath().normalize());
+		CompactPathSet compact = new CompactPathSet(paths);
+
+		System.out.println("Paths: " + compact.size());
+		System.out.println("Stored: " + compact.nodes());
+		System.out.println("Names: " + compact.names());
+		System.out.println("Equal: " + compact.equals(paths));
+	}
+
+	/* --------------------------------------- */
+
+	// used for roots (which have no parent) and for paths not found
+	private static final int NONE = -1;
+
+	// what file names that could not be decoded are converted to
+	private static final char REPLACEMENT = '\uFFFD';
+
+	// parent index and file name id of each stored path
+	private int[] parents;
+	private int[] names;
+	private BitSet members;
+	private int nodes;
+	private int size;
+
+	// open addressing hash table from parent and name to path index (plus one
+	// so that zero means empty), never more than half full
+	private int[] table;
+
+	// every distinct file name back to back, where name i is stored from
+	// starts[i] up to starts[i + 1], with a hash table of name ids (plus one)
+	private byte[] bytes;
+	private int[] starts;
+	private int[] nameTable;
+	private int nameCount;
+
+	// file names that would not convert back exactly from a string
+	private final HashMap<Integer, Path> undecoded;
+	private final HashMap<Path, Integer> undecodedIds;
+
+	// paths from a listing are added one directory at a time
+	private Path lastParent;
+	private int lastParentId;
+
+	/**
+	 * Finds (or creates) the index of a path, along with its parents.
+	 *
+	 * @param path
+	 *            path to find
+	 * @param create
+	 *            whether to store the path if it is not found
+	 * @return index of the path, or {@link #NONE} if not found
+	 */
+	private int node(Path path, boolean create) {
+		Path parent = path.getParent();
+		int parentId = NONE;
+
+		if (parent != null) {
+			if (parent.equals(lastParent)) {
+				parentId = lastParentId;
+			}
+			else {
+				parentId = node(parent, create);
+
+				if (parentId == NONE) {
+					return NONE;
+				}
+
+				lastParent = parent;
+				lastParentId = parentId;
+			}
+		}
+
+		// roots and single relative names are stored as a whole
+		Path file = parent == null ? path : path.getFileName();
+		String string = file.toString();
+
+		int name = string.indexOf(REPLACEMENT) < 0 ? name(encode(string), create) : undecoded(file, create);
+
+		if (name == NONE) {
+			return NONE;
+		}
+
+		return create ? insert(parentId, name) : find(parentId, name);
+	}
+
+	/**
+	 * Finds (or creates) the id of a file name stored as bytes.
+	 *
+	 * @param encoded
+	 *            file name to find, encoded as UTF-8
+	 * @param create
+	 *            whether to store the name if it is not found
+	 * @return id of the name, or {@link #NONE} if not found
+	 */
+	private int name(byte[] encoded, boolean create) {
+		int mask = nameTable.length - 1;
+		int slot = spread(Arrays.hashCode(encoded)) & mask;
+
+		while (nameTable[slot] != 0) {
+			int id = nameTable[slot] - 1;
+
+			if (matches(id, encoded)) {
+				return id;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		if (!create) {
+			return NONE;
+		}
+
+		int id = newName();
+		int start = starts[id];
+		int end = start + encoded.length;
+
+		if (end > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(grow(bytes.length), end));
+		}
+
+		System.arraycopy(encoded, 0, bytes, start, encoded.length);
+		starts[id + 1] = end;
+		placeName(id);
+		return id;
+	}
+
+	/**
+	 * Finds (or creates) the id of a file name kept as a path object.
+	 *
+	 * @param file
+	 *            file name to find
+	 * @param create
+	 *            whether to store the name if it is not found
+	 * @return id of the name, or {@link #NONE} if not found
+	 */
+	private int undecoded(Path file, boolean create) {
+		Integer id = undecodedIds.get(file);
+
+		if (id != null) {
+			return id;
+		}
+
+		if (!create) {
+			return NONE;
+		}
+
+		// takes no characters and is never placed in the name table
+		id = newName();
+		starts[id + 1] = starts[id];
+		undecoded.put(id, file);
+		undecodedIds.put(file, id);
+		return id;
+	}
+
+	// reserves the next name id, rebuilding the name table when it is half full
+	private int newName() {
+		if (nameCount + 1 == starts.length) {
+			starts = Arrays.copyOf(starts, grow(starts.length));
+		}
+
+		int id = nameCount++;
+
+		if (nameCount * 2 > nameTable.length) {
+			nameTable = new int[nameTable.length * 2];
+
+			for (int other = 0; other < id; other++) {
+				if (undecoded.isEmpty() || !undecoded.containsKey(other)) {
+					placeName(other);
+				}
+			}
+		}
+
+		return id;
+	}
+
+	// whether a stored name has exactly the given bytes
+	private boolean matches(int id, byte[] encoded) {
+		int start = starts[id];
+
+		if (starts[id + 1] - start != encoded.length) {
+			return false;
+		}
+
+		for (int i = 0; i < encoded.length; i++) {
+			if (bytes[start + i] != encoded[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// adds a stored name to the first empty slot of the name table
+	private void placeName(int id) {
+		// same hash code as the encoded array would have
+		int hash = 1;
+
+		for (int i = starts[id]; i < starts[id + 1]; i++) {
+			hash = 31 * hash + bytes[i];
+		}
+
+		int mask = nameTable.length - 1;
+		int slot = spread(hash) & mask;
+
+		while (nameTable[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+
+		nameTable[slot] = id + 1;
+	}
+
+	// copy of the bytes of a stored name
+	private byte[] encoded(int name) {
+		return Arrays.copyOfRange(bytes, starts[name], starts[name + 1]);
+	}
+
+	// file names are stored as UTF-8
+	private static byte[] encode(String string) {
+		return string.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// decodes a name stored as bytes
+	private String segment(int name) {
+		return new String(bytes, starts[name], starts[name + 1] - starts[name], StandardCharsets.UTF_8);
+	}
+
+	// grows arrays by half as much again, like an array list
+	private static int grow(int length) {
+		return length + (length >> 1);
+	}
+
+	// mixes the upper bits in, since only the lower bits pick a slot
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	// hash of a path from its parent index and name id
+	private static int hash(int parent, int name) {
+		return spread(parent * 0x9E3779B1 + name);
+	}
+
+	// index of a stored path, or NONE if not found
+	private int find(int parent, int name) {
+		int mask = table.length - 1;
+		int slot = hash(parent, name) & mask;
+
+		while (table[slot] != 0) {
+			int id = table[slot] - 1;
+
+			if (parents[id] == parent && names[id] == name) {
+				return id;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return NONE;
+	}
+
+	// finds or stores a path, rebuilding the path table when it is half full
+	private int insert(int parent, int name) {
+		int id = find(parent, name);
+
+		if (id != NONE) {
+			return id;
+		}
+
+		if (nodes == parents.length) {
+			parents = Arrays.copyOf(parents, grow(nodes));
+			names = Arrays.copyOf(names, grow(nodes));
+		}
+
+		id = nodes++;
+		parents[id] = parent;
+		names[id] = name;
+
+		if (nodes * 2 > table.length) {
+			table = new int[table.length * 2];
+
+			for (int other = 0; other < nodes; other++) {
+				place(other);
+			}
+		}
+		else {
+			place(id);
+		}
+
+		return id;
+	}
+
+	// adds a stored path to the first empty slot of the path table
+	private void place(int id) {
+		int mask = table.length - 1;
+		int slot = hash(parents[id], names[id]) & mask;
+
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+
+		table[slot] = id + 1;
+	}
+
+	/**
+	 * Converts a stored path back into a {@link Path} object.
+	 *
+	 * @param id
+	 *            index of the path
+	 * @return path object
+	 */
+	private Path path(int id) {
+		int depth = 0;
+
+		for (int current = id; current != NONE; current = parents[current]) {
+			depth++;
+		}
+
+		int[] chain = new int[depth];
+		boolean decoded = true;
+
+		for (int current = id; current != NONE; current = parents[current]) {
+			chain[--depth] = names[current];
+		}
+
+		if (!undecoded.isEmpty()) {
+			for (int name : chain) {
+				decoded = decoded && !undecoded.containsKey(name);
+			}
+		}
+
+		if (decoded) {
+			// creates only one path object in the common case
+			String[] more = new String[chain.length - 1];
+
+			for (int i = 0; i < more.length; i++) {
+				more[i] = segment(chain[i + 1]);
+			}
+
+			return Paths.get(segment(chain[0]), more);
+		}
+
+		Path path = file(chain[0]);
+
+		for (int i = 1; i < chain.length; i++) {
+			path = path.resolve(file(chain[i]));
+		}
+
+		return path;
+	}
+
+	// converts a single stored name back into a path
+	private Path file(int name) {
+		Path path = undecoded.get(name);
+		return path != null ? path : Paths.get(segment(name));
+	}
+}
@@ -0,0 +1,246 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A {@link WorkQueue} that adds worker threads (up to a maximum) when tasks are
+ * waiting too long in the queue while every worker is busy, and retires worker
+ * threads (down to a minimum) that have been idle for too long. This is
+ * helpful when tasks spend most of their time blocked on I/O, since the best
+ * number of threads then depends on the hardware.
+ *
+ * Finally, {@link #virtual(int)} creates a work queue that runs tasks on
+ * virtual threads (when running on Java 21 or newer), starting a new thread
+ * whenever a task is submitted and every thread is busy, up to a limit on how
+ * many tasks run at once. This is a good fit for tasks that mostly block on
+ * I/O, since virtual threads are cheap to create and to block.
+ *
+ * @see WorkQueue
+ */
+public class ElasticWorkQueue extends WorkQueue {
+
+	private static final Logger log = LogManager.getLogger();
+
+	/** Minimum number of worker threads to keep alive. */
+	private final int min;
+
+	/** Maximum number of worker threads to start. */
+	private final int max;
+
+	/** Nanoseconds an extra worker may stay idle before it is retired. */
+	private final long keepAlive;
+
+	/** Used to create the thread for each worker. */
+	private final ThreadFactory factory;
+
+	/** Whether to start a worker whenever every worker is busy. */
+	private final boolean eager;
+
+	/** Recent average nanoseconds tasks wait in the queue (approximate). */
+	private volatile long recentWait;
+
+	/** Checks for tasks that have waited too long in the queue. */
+	private final WorkQueueWatchdog watchdog;
+
+	/**
+	 * Nanoseconds a task may wait in the queue while every worker is busy
+	 * before another worker is added.
+	 */
+	public static final long GROW_AFTER = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Milliseconds between checks for tasks that have waited too long. Tasks
+	 * submitted while every worker is busy are checked right away, but tasks
+	 * already waiting are only checked again by the watchdog.
+	 */
+	public static final long GROW_PERIOD = 10;
+
+	/**
+	 * Starts an elastic work queue with at least {@code min} and at most
+	 * {@code max} threads. Threads are added when tasks wait longer than
+	 * {@link #GROW_AFTER} while every worker is busy, and extra threads are
+	 * retired after being idle for the keep-alive time.
+	 *
+	 * @param min
+	 *            minimum number of worker threads; may be 0
+	 * @param max
+	 *            maximum number of worker threads; should be positive
+	 * @param keepAlive
+	 *            how long extra threads may be idle before being retired
+	 * @param unit
+	 *            time unit of the keep-alive time
+	 *
+	 * @see WorkQueue#recommended(double)
+	 */
+	public ElasticWorkQueue(int min, int max, long keepAlive, TimeUnit unit) {
+		this(min, max, keepAlive, unit, false);
+	}
+
+	/**
+	 * Starts an elastic work queue, optionally using virtual threads for the
+	 * workers and starting a worker for every task that needs one.
+	 *
+	 * @see #ElasticWorkQueue(int, int, long, TimeUnit)
+	 * @see #virtual(int)
+	 */
+	private ElasticWorkQueue(int min, int max, long keepAlive, TimeUnit unit, boolean virtual) {
+		super(max, new ArrayDeque<Task>());
+
+		if (min < 0 || min > max) {
+			throw new IllegalArgumentException("Invalid number of threads.");
+		}
+
+		this.min = min;
+		this.max = max;
+		this.keepAlive = unit.toNanos(keepAlive);
+		this.factory = virtual ? virtualThreads() : Thread::new;
+		this.eager = virtual;
+		this.recentWait = 0;
+		this.watchdog = new WorkQueueWatchdog("ElasticWorkQueue", this::checkGrowth);
+
+		start(min);
+
+		// eager queues already start a worker for every task that needs one
+		if (max > min && !eager) {
+			watchdog.every(GROW_PERIOD);
+		}
+	}
+
+	/**
+	 * Starts a work queue that runs each task on a virtual thread, with at
+	 * most {@code limit} tasks running at once. Tasks beyond the limit wait in
+	 * the queue. Threads are started when tasks are submitted and every thread
+	 * is busy, and exit as soon as there is no more queued work. Uses platform
+	 * threads instead if virtual threads are not supported (before Java 21).
+	 *
+	 * @param limit
+	 *            maximum number of tasks to run at once; should be positive
+	 * @return work queue using virtual threads
+	 */
+	public static ElasticWorkQueue virtual(int limit) {
+		return new ElasticWorkQueue(0, limit, 0, TimeUnit.NANOSECONDS, true);
+	}
+
+	/**
+	 * Returns a thread factory that creates virtual threads. Uses reflection
+	 * so this class still compiles and runs on versions of Java without
+	 * virtual threads, in which case a platform thread factory is returned.
+	 *
+	 * @return thread factory for virtual threads if supported
+	 */
+	private static ThreadFactory virtualThreads() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> type = Class.forName("java.lang.Thread$Builder");
+			return (ThreadFactory) type.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException e) {
+			log.warn("Virtual threads not supported; using platform threads instead.");
+			log.catching(Level.DEBUG, e);
+			return Thread::new;
+		}
+	}
+
+	/**
+	 * Returns the minimum number of worker threads kept alive.
+	 *
+	 * @return minimum number of worker threads
+	 */
+	public int minSize() {
+		return min;
+	}
+
+	/**
+	 * Returns the maximum number of worker threads that will be started.
+	 *
+	 * @return maximum number of worker threads
+	 */
+	public int maxSize() {
+		return max;
+	}
+
+	@Override
+	protected Thread newThread(Runnable worker) {
+		return factory.newThread(worker);
+	}
+
+	/**
+	 * Only extra workers (beyond the minimum) wait for so long.
+	 */
+	@Override
+	protected long keepAlive() {
+		return size() > min ? keepAlive : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Keeps a moving average over roughly the last 8 tasks. Lost updates from
+	 * racing threads are fine since this is only an estimate.
+	 */
+	@Override
+	protected void waited(long nanos) {
+		recentWait += (nanos - recentWait) / 8;
+	}
+
+	/**
+	 * Adds more workers if there are not enough idle workers for the new
+	 * tasks, and tasks have been waiting too long.
+	 */
+	@Override
+	protected void queued(int tasks) {
+		int live = size();
+		int wanted = Math.min(tasks - idle(), max - live);
+
+		if (wanted <= 0) {
+			return;
+		}
+
+		// always need at least one worker if there is work to do
+		if (live == 0 || eager || waiting() >= GROW_AFTER || recentWait >= GROW_AFTER) {
+			// only start one thread at a time unless asked to be eager
+			wanted = eager ? wanted : 1;
+
+			for (int i = 0; i < wanted; i++) {
+				addWorker();
+			}
+
+			log.debug("Work queue grew to {} workers.", size());
+		}
+	}
+
+	@Override
+	protected void terminated() {
+		watchdog.cancel();
+	}
+
+	/**
+	 * Called periodically by the watchdog to add a worker when every worker is
+	 * busy and the oldest waiting task has waited at least {@link #GROW_AFTER}.
+	 * Otherwise the queue would only grow when new tasks are submitted, and
+	 * tasks already waiting behind blocked workers would keep waiting. Only
+	 * starts one worker per check.
+	 */
+	private void checkGrowth() {
+		// avoid locking unless there may be tasks waiting for a worker
+		if (size() >= max || idle() > 0 || pending() <= size()) {
+			return;
+		}
+
+		lock.lock();
+
+		try {
+			if (size() >= max || idle() > 0 || waiting() < GROW_AFTER) {
+				return;
+			}
+
+			addWorker();
+			log.debug("Work queue grew to {} workers.", size());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
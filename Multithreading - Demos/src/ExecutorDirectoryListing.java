@@ -3,9 +3,12 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -15,22 +18,78 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * Generates a directory listing using multi-threading via executors and
- * built-in thread-safe objects (like synchronized sets and atomic integers)
+ * built-in thread-safe objects (like synchronized sets and atomic integers).
+ * The results of each task may be combined in several ways; see
+ * {@link Aggregation}.
  */
 public class ExecutorDirectoryListing {
 
+	/**
+	 * How the paths found by each task are combined into the final listing.
+	 */
+	public static enum Aggregation {
+		/**
+		 * Every task adds its paths to one synchronized set, so tasks that
+		 * finish at the same time wait on each other's lock.
+		 */
+		SYNCHRONIZED,
+
+		/**
+		 * Every task adds its paths to one pre-sized concurrent set, which
+		 * locks only the bins being changed instead of the whole set.
+		 */
+		CONCURRENT,
+
+		/**
+		 * Every worker thread appends the paths of its tasks to its own list
+		 * without any locking, and the lists are merged into a single set
+		 * once all of the tasks are done.
+		 */
+		BUFFERED
+	}
+
+	/**
+	 * Aggregation used by {@link #list(Path)}, which is the original
+	 * synchronized set. Compare the others on your system with
+	 * {@code DirectoryListingBenchmarks} before switching; buffering avoids any
+	 * shared writes until the end, so it should matter most with many cores.
+	 */
+	public static final Aggregation DEFAULT = Aggregation.SYNCHRONIZED;
+
+	/**
+	 * Initial capacity of the set used for {@link Aggregation#CONCURRENT}, so
+	 * it does not have to resize as often for large listings.
+	 */
+	public static final int CAPACITY = 1 << 14;
+
 	/**
 	 * Returns a directory listing for the given path.
 	 *
 	 * @param path
 	 *            directory to create listing
 	 * @return paths found within directory and its subdirectories
+	 *
+	 * @see #DEFAULT
 	 */
 	public static Set<Path> list(Path path) {
-		ExecutorDirectoryListing workers = new ExecutorDirectoryListing();
+		return list(path, DEFAULT);
+	}
+
+	/**
+	 * Returns a directory listing for the given path, combining the results
+	 * of each task in the given way.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param aggregation
+	 *            how to combine the results of each task
+	 * @return paths found within directory and its subdirectories
+	 */
+	public static Set<Path> list(Path path, Aggregation aggregation) {
+		ExecutorDirectoryListing workers = new ExecutorDirectoryListing(aggregation);
 		workers.parse(path);
 		workers.executor.shutdown();
-		return workers.paths;
+		return workers.results();
 	}
 
 	/**
@@ -47,15 +106,49 @@ public class ExecutorDirectoryListing {
 
 	private static final Logger log = LogManager.getLogger();
 
+	private final Aggregation aggregation;
 	private final Set<Path> paths;
 	private final ExecutorService executor;
 	private AtomicInteger pending;
 
-	private ExecutorDirectoryListing() {
-		// make this synchronized so we can just add without worry
-		// note this is NOT safe to iterate through without manual
-		// synchronization
-		this.paths = Collections.synchronizedSet(new HashSet<>());
+	// only created for buffered aggregation
+	private final ConcurrentLinkedQueue<ArrayList<Path>> buffers;
+	private final ThreadLocal<ArrayList<Path>> buffer;
+
+	private ExecutorDirectoryListing(Aggregation aggregation) {
+		this.aggregation = aggregation;
+
+		switch (aggregation) {
+			case CONCURRENT:
+				// only locks the part of the set being changed
+				this.paths = ConcurrentHashMap.newKeySet(CAPACITY);
+				break;
+			case BUFFERED:
+				// created once all of the tasks are done
+				this.paths = null;
+				break;
+			default:
+				// make this synchronized so we can just add without worry
+				// note this is NOT safe to iterate through without manual
+				// synchronization
+				this.paths = Collections.synchronizedSet(new HashSet<>());
+				break;
+		}
+
+		if (aggregation == Aggregation.BUFFERED) {
+			// each worker thread creates and registers its own list the first
+			// time it finishes a task, and only that thread ever adds to it
+			this.buffers = new ConcurrentLinkedQueue<>();
+			this.buffer = ThreadLocal.withInitial(() -> {
+				ArrayList<Path> list = new ArrayList<>();
+				buffers.add(list);
+				return list;
+			});
+		}
+		else {
+			this.buffers = null;
+			this.buffer = null;
+		}
 
 		// creates a built-in thread pool/work queue with the same size
 		this.executor = Executors.newFixedThreadPool(WorkQueue.DEFAULT);
@@ -67,20 +160,42 @@ public class ExecutorDirectoryListing {
 	private void parse(Path path) {
 		executor.execute(new DirectoryTask(path));
 
-		while (pending.get() != 0) {
-			try {
-				// we still need to synchronize our wait() and notifyAll()
-				synchronized (pending) {
+		try {
+			// we still need to synchronize our wait() and notifyAll(), and
+			// check inside the block so the last notify cannot be missed
+			synchronized (pending) {
+				while (pending.get() != 0) {
 					pending.wait();
 				}
 			}
-			catch (InterruptedException ex) {
-				log.debug(ex.getMessage(), ex);
-				break;
-			}
+		}
+		catch (InterruptedException ex) {
+			log.debug(ex.getMessage(), ex);
 		}
 	}
 
+	private Set<Path> results() {
+		if (aggregation != Aggregation.BUFFERED) {
+			return paths;
+		}
+
+		// safe to read the lists now, since every task finished before the
+		// pending count reached zero
+		int size = 0;
+
+		for (ArrayList<Path> list : buffers) {
+			size += list.size();
+		}
+
+		HashSet<Path> merged = new HashSet<>((int) (size / 0.75f) + 1);
+
+		for (ArrayList<Path> list : buffers) {
+			merged.addAll(list);
+		}
+
+		return merged;
+	}
+
 	private class DirectoryTask implements Runnable {
 		private final Path path;
 
@@ -91,7 +206,7 @@ public class ExecutorDirectoryListing {
 
 		@Override
 		public void run() {
-			HashSet<Path> local = new HashSet<>();
+			ArrayList<Path> local = new ArrayList<>();
 
 			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
 				for (Path current : stream) {
@@ -106,8 +221,14 @@ public class ExecutorDirectoryListing {
 				log.debug(ex.getMessage(), ex);
 			}
 
-			// remember methods on paths is thread-safe
-			paths.addAll(local);
+			if (aggregation == Aggregation.BUFFERED) {
+				// only this thread ever touches its own buffer
+				buffer.get().addAll(local);
+			}
+			else {
+				// remember methods on paths is thread-safe
+				paths.addAll(local);
+			}
 
 			if (pending.decrementAndGet() == 0) {
 				// we still need to synchronize our wait() and notifyAll()
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Generates a directory listing using multi-threading via the built-in
+ * fork/join framework. Each directory is a recursive task that forks a task
+ * for every subdirectory and returns the paths in its entire subtree, merging
+ * the results of its children itself. There is no shared set, and each
+ * worker thread keeps its own queue of tasks (stealing from the others when
+ * it runs out), so threads rarely wait on each other.
+ *
+ * @see FuturesDirectoryListing
+ */
+public class ForkJoinDirectoryListing {
+
+	/**
+	 * Returns a directory listing for the given path, using the common
+	 * fork/join pool.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @return paths found within directory and its subdirectories
+	 *
+	 * @see ForkJoinPool#commonPool()
+	 */
+	public static Set<Path> list(Path path) {
+		return list(path, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Returns a directory listing for the given path using an existing pool.
+	 * The pool is not shutdown, so it may be reused for other listings.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param pool
+	 *            fork/join pool to use
+	 * @return paths found within directory and its subdirectories
+	 */
+	public static Set<Path> list(Path path, ForkJoinPool pool) {
+		return pool.invoke(new DirectoryTask(path));
+	}
+
+	/**
+	 * Tests the directory listing for the current directory.
+	 *
+	 * @param args
+	 *            unused
+	 */
+	public static void main(String[] args) {
+		System.out.println(list(Paths.get(".").normalize()));
+	}
+
+	/* --------------------------------------- */
+
+	private static final Logger log = LogManager.getLogger();
+
+	// a recursive task returns a result, like a callable
+	private static class DirectoryTask extends RecursiveTask<Set<Path>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Path path;
+
+		public DirectoryTask(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		protected Set<Path> compute() {
+			Set<Path> local = new HashSet<>();
+			ArrayList<DirectoryTask> tasks = new ArrayList<>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for (Path current : stream) {
+					local.add(current);
+
+					if (Files.isDirectory(current)) {
+						tasks.add(new DirectoryTask(current));
+					}
+				}
+			}
+			catch (IOException ex) {
+				log.debug(ex.getMessage(), ex);
+			}
+
+			// forks all but one child, computes that one in this thread, and
+			// then waits for (or helps with) the rest
+			invokeAll(tasks);
+
+			for (DirectoryTask task : tasks) {
+				Set<Path> child = task.join();
+
+				// add the smaller set into the larger one to copy less
+				if (child.size() > local.size()) {
+					child.addAll(local);
+					local = child;
+				}
+				else {
+					local.addAll(child);
+				}
+			}
+
+			return local;
+		}
+
+		@Override
+		public String toString() {
+			return "DirectoryTask[" + path + "]";
+		}
+	}
+
+}
@@ -3,21 +3,20 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Generates a directory listing using multi-threading via executors, callable
- * tasks (instead of runnable tasks), futures, and a completion service.
+ * Generates a directory listing using multi-threading via our work queue,
+ * callable tasks (instead of runnable tasks), and futures. Each task forks a
+ * child task for every subdirectory and merges the results of its children
+ * into its own, so the results are combined up the directory tree instead of
+ * funneling every path through one shared set.
  */
 public class FuturesDirectoryListing {
 
@@ -29,10 +28,46 @@ public class FuturesDirectoryListing {
 	 * @return paths found within directory and its subdirectories
 	 */
 	public static Set<Path> list(Path path) {
-		FuturesDirectoryListing workers = new FuturesDirectoryListing();
-		workers.parse(path);
-		workers.executor.shutdown();
-		return workers.paths;
+		WorkQueue queue = new WorkQueue(WorkQueue.DEFAULT);
+		Set<Path> paths = list(path, queue);
+
+		// since we create the work queue, we should shutdown the queue too
+		queue.shutdown();
+		return paths;
+	}
+
+	/**
+	 * Returns a directory listing for the given path using an existing work
+	 * queue. The work queue is not shutdown, so it may be reused for other
+	 * listings without starting new threads each time.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param queue
+	 *            work queue to use
+	 * @return paths found within directory and its subdirectories
+	 */
+	public static Set<Path> list(Path path, WorkQueue queue) {
+		return list(path, queue, false);
+	}
+
+	/**
+	 * Returns a directory listing for the given path using an existing work
+	 * queue, optionally stored in a {@link CompactPathSet} instead of a hash
+	 * set to use much less memory for large listings.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param queue
+	 *            work queue to use
+	 * @param compact
+	 *            whether to return a compact set
+	 * @return paths found within directory and its subdirectories
+	 */
+	public static Set<Path> list(Path path, WorkQueue queue, boolean compact) {
+		// the future gives us the result of the top task, which includes the
+		// results of every other task by the time it is done
+		return queue.submit(new DirectoryTask(queue, path, compact)).join();
 	}
 
 	/**
@@ -49,72 +84,30 @@ public class FuturesDirectoryListing {
 
 	private static final Logger log = LogManager.getLogger();
 
-	private final Set<Path> paths;
-	private final ExecutorService executor;
-	private final ExecutorCompletionService<Set<Path>> completor;
-	private final AtomicInteger count;
-
-	private FuturesDirectoryListing() {
-		// only the main thread will add to this set, so no more synchronization
-		this.paths = new HashSet<>();
-
-		// this will create a thread pool of fixed size
-		this.executor = Executors.newFixedThreadPool(WorkQueue.DEFAULT);
-
-		// this will give us tasks as they complete (whatever order they
-		// complete)
-		this.completor = new ExecutorCompletionService<Set<Path>>(this.executor);
-
-		// this tracks how many tasks we create total, we do not need to
-		// synchronize access if we use an atomic integer
-		this.count = new AtomicInteger();
-	}
-
-	private void parse(Path path) {
-		// add to our completion service instead of the executor
-		completor.submit(new DirectoryTask(path));
-
-		// note the count can increase each for loop!
-		for (int i = 0; i < count.get(); i++) {
-			try {
-				// the take() will grab the next completed task, or
-				// force us to wait until the next task is completed
-				Set<Path> local = completor.take().get();
-
-				// this does not need to be synchronized, as only the main
-				// thread is executing this code (not the workers)
-				paths.addAll(local);
-			}
-			catch (InterruptedException | ExecutionException ex) {
-				log.debug(ex.toString(), ex);
-				break;
-			}
-		}
-	}
-
 	// notice this is now a callable object
 	// the callable interface requires the type of object returned by call()
-	private class DirectoryTask implements Callable<Set<Path>> {
+	private static class DirectoryTask implements Callable<Set<Path>> {
+		private final WorkQueue queue;
 		private final Path path;
+		private final boolean compact;
 
-		public DirectoryTask(Path path) {
+		public DirectoryTask(WorkQueue queue, Path path, boolean compact) {
+			this.queue = queue;
 			this.path = path;
-
-			// keep track of the number of tasks created
-			count.incrementAndGet();
+			this.compact = compact;
 		}
 
 		@Override
 		public Set<Path> call() {
-			HashSet<Path> local = new HashSet<>();
+			Set<Path> local = compact ? new CompactPathSet() : new HashSet<>();
+			ArrayList<DirectoryTask> tasks = new ArrayList<>();
 
 			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
 				for (Path current : stream) {
 					local.add(current);
 
 					if (Files.isDirectory(current)) {
-						// add to our completion service instead of the executor
-						completor.submit(new DirectoryTask(current));
+						tasks.add(new DirectoryTask(queue, current, compact));
 					}
 				}
 			}
@@ -122,9 +115,30 @@ public class FuturesDirectoryListing {
 				log.debug(ex.getMessage(), ex);
 			}
 
+			// no need to count tasks, each task only waits on its own children
+			WorkScope<Set<Path>> scope = queue.scope();
+			scope.forkAll(tasks);
+
+			// join() runs children no worker has started yet in this thread
+			for (Set<Path> child : scope.join()) {
+				// add the smaller set into the larger one to copy less
+				if (child.size() > local.size()) {
+					child.addAll(local);
+					local = child;
+				}
+				else {
+					local.addAll(child);
+				}
+			}
+
 			// notice call() returns a value, whereas run() does not!
 			return local;
 		}
+
+		@Override
+		public String toString() {
+			return "DirectoryTask[" + path + "]";
+		}
 	}
 
 }
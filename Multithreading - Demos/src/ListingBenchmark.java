@@ -1,9 +1,20 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Gives a rough comparison of the directory listings using simple timing
+ * loops. See {@code DirectoryListingBenchmarks} in the {@code Benchmarks}
+ * project for more reliable results using JMH.
+ */
 public class ListingBenchmark {
 
 	public static final int WARMUP_ROUNDS = 10;
@@ -32,6 +43,35 @@ public class ListingBenchmark {
 			}
 		}.benchmark(test, expected);
 
+		System.out.println("Benchmarking work stealing directory listing...");
+		double stealing = new Benchmarker() {
+			@Override
+			public Set<Path> run(Path path) {
+				return WorkQueueDirectoryListing.list(test, true);
+			}
+		}.benchmark(test, expected);
+
+		System.out.println("Benchmarking elastic work queue directory listing...");
+		// reuse the same work queue so it can adapt its size between rounds
+		WorkQueue elastic = new ElasticWorkQueue(1, WorkQueue.recommended(0.9), 1, TimeUnit.SECONDS);
+		double adaptive = new Benchmarker() {
+			@Override
+			public Set<Path> run(Path path) {
+				return WorkQueueDirectoryListing.list(test, elastic);
+			}
+		}.benchmark(test, expected);
+		elastic.shutdown();
+
+		System.out.println("Benchmarking virtual thread directory listing...");
+		WorkQueue virtual = ElasticWorkQueue.virtual(WorkQueue.recommended(0.9));
+		double virtuals = new Benchmarker() {
+			@Override
+			public Set<Path> run(Path path) {
+				return WorkQueueDirectoryListing.list(test, virtual);
+			}
+		}.benchmark(test, expected);
+		virtual.shutdown();
+
 		System.out.println("Benchmarking executor directory listing...");
 		double executor = new Benchmarker() {
 			@Override
@@ -48,11 +88,47 @@ public class ListingBenchmark {
 			}
 		}.benchmark(test, expected);
 
+		System.out.println("Benchmarking compact futures directory listing...");
+		WorkQueue shared = new WorkQueue(WorkQueue.DEFAULT);
+		double compact = new Benchmarker() {
+			@Override
+			public Set<Path> run(Path path) {
+				return FuturesDirectoryListing.list(test, shared, true);
+			}
+		}.benchmark(test, expected);
+		shared.shutdown();
+
+		System.out.println("Benchmarking fork/join directory listing...");
+		double forkjoin = new Benchmarker() {
+			@Override
+			public Set<Path> run(Path path) {
+				return ForkJoinDirectoryListing.list(test);
+			}
+		}.benchmark(test, expected);
+
+		// collected into a set only to verify the results; counting or
+		// filtering the stream instead would use much less memory
+		System.out.println("Benchmarking streaming directory listing...");
+		double streaming = new Benchmarker() {
+			@Override
+			public Set<Path> run(Path path) {
+				try (Stream<Path> paths = StreamingDirectoryListing.stream(test)) {
+					return paths.collect(Collectors.toSet());
+				}
+			}
+		}.benchmark(test, expected);
+
 		System.out.println();
 		System.out.println(String.format("%20s: %8.2fms", "Serial", serial));
 		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Work Queue", queue, serial / queue));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Work Stealing", stealing, serial / stealing));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Elastic", adaptive, serial / adaptive));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Virtual", virtuals, serial / virtuals));
 		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Executor", executor, serial / executor));
 		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Futures", futures, serial / futures));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Compact", compact, serial / compact));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Fork/Join", forkjoin, serial / forkjoin));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Streaming", streaming, serial / streaming));
 	}
 
 	private static abstract class Benchmarker {
@@ -69,6 +145,11 @@ public class ListingBenchmark {
 				run(path);
 			}
 
+			// track the most heap used while timing
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				pool.resetPeakUsage();
+			}
+
 			// timed
 			Instant start = Instant.now();
 			for (int i = 0; i < TIMED_ROUNDS; i++) {
@@ -76,6 +157,17 @@ public class ListingBenchmark {
 			}
 			Instant end = Instant.now();
 
+			long peak = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP) {
+					peak += pool.getPeakUsage().getUsed();
+				}
+			}
+
+			// the peak of each pool may happen at different times, so this
+			// is only a rough upper bound
+			System.out.println(String.format("%20s: %8.2fMB", "Peak Heap", peak / 1048576.0));
+
 			// averaged result
 			Duration elapsed = Duration.between(start, end);
 			return (double) elapsed.toMillis() / TIMED_ROUNDS;
@@ -0,0 +1,143 @@
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link WorkQueue} that runs the task with the earliest deadline first,
+ * instead of the task submitted first. Each task either has an explicit
+ * deadline or a {@link Priority} that gives it a deadline relative to when it
+ * was submitted. This lets urgent tasks skip ahead of a large backlog of bulk
+ * tasks, while tasks that have waited long enough still run before newer
+ * urgent tasks, so no task is starved forever. Tasks submitted without a
+ * priority or deadline are given the {@link Priority#NORMAL} priority.
+ *
+ * @see WorkQueue
+ */
+public class PriorityWorkQueue extends WorkQueue {
+
+	/**
+	 * Determines when a task should run, relative to when it was submitted.
+	 * Tasks are run in order of these deadlines, so a task with a lower
+	 * priority only waits behind tasks with a higher priority for a limited
+	 * amount of time.
+	 */
+	public static enum Priority {
+		/** Runs before any other task submitted at the same time or earlier. */
+		HIGH(0),
+
+		/** Runs after high priority tasks submitted up to 100ms later. */
+		NORMAL(TimeUnit.MILLISECONDS.toNanos(100)),
+
+		/** Runs after high priority tasks submitted up to 1s later. */
+		LOW(TimeUnit.SECONDS.toNanos(1));
+
+		/** Nanoseconds after submission the task should run by. */
+		private final long slack;
+
+		/**
+		 * Initializes a priority with the specified deadline.
+		 *
+		 * @param slack
+		 *            nanoseconds after submission the task should run by
+		 */
+		private Priority(long slack) {
+			this.slack = slack;
+		}
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads that runs the
+	 * task with the earliest deadline first.
+	 *
+	 * @param threads
+	 *            number of worker threads; should be greater than 1
+	 */
+	public PriorityWorkQueue(int threads) {
+		super(threads, new PriorityQueue<Task>(16, PriorityWorkQueue::compare));
+		start(threads);
+	}
+
+	/**
+	 * Adds a work request with the specified priority to the queue.
+	 *
+	 * @param r
+	 *            work request (in the form of a {@link Runnable} object)
+	 * @param priority
+	 *            priority of the work request
+	 * @throws RejectedExecutionException
+	 *             if the queue has been shutdown
+	 *
+	 * @see #execute(Runnable)
+	 */
+	public void execute(Runnable r, Priority priority) {
+		enqueue(new Deadline(r, 0, priority.slack));
+	}
+
+	/**
+	 * Adds a work request to the queue that should start running within the
+	 * specified amount of time. This is only a scheduling hint; the request is
+	 * still run after the deadline passes.
+	 *
+	 * @param r
+	 *            work request (in the form of a {@link Runnable} object)
+	 * @param deadline
+	 *            how soon the work request should start running
+	 * @param unit
+	 *            time unit of the deadline
+	 * @throws RejectedExecutionException
+	 *             if the queue has been shutdown
+	 *
+	 * @see #execute(Runnable)
+	 */
+	public void execute(Runnable r, long deadline, TimeUnit unit) {
+		enqueue(new Deadline(r, 0, Math.max(0, unit.toNanos(deadline))));
+	}
+
+	/**
+	 * Gives the task the {@link Priority#NORMAL} priority.
+	 */
+	@Override
+	protected Task newTask(Runnable r, long timeout) {
+		return new Deadline(r, timeout, Priority.NORMAL.slack);
+	}
+
+	/**
+	 * Compares two tasks by deadline. Every task in this queue is created with
+	 * a deadline.
+	 *
+	 * @param one
+	 *            first task
+	 * @param two
+	 *            second task
+	 * @return negative if the first task should run first
+	 */
+	private static int compare(Task one, Task two) {
+		// compare the difference since nano times may overflow
+		return Long.signum(((Deadline) one).deadline - ((Deadline) two).deadline);
+	}
+
+	/**
+	 * A task along with when it should run by.
+	 */
+	private static class Deadline extends Task {
+
+		/** When the work request should run by, in nanoseconds. */
+		private final long deadline;
+
+		/**
+		 * Initializes a task for the work request submitted now.
+		 *
+		 * @param runnable
+		 *            work request
+		 * @param timeout
+		 *            nanoseconds the work request may run, or 0 to use the
+		 *            timeout of the work queue
+		 * @param slack
+		 *            nanoseconds from now the work request should run by
+		 */
+		public Deadline(Runnable runnable, long timeout, long slack) {
+			super(runnable, timeout);
+			this.deadline = queued + slack;
+		}
+	}
+}
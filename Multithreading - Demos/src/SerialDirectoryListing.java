@@ -1,10 +1,18 @@
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,6 +35,25 @@ public class SerialDirectoryListing {
 		return paths;
 	}
 
+	/**
+	 * Returns a lazy directory listing for the given path. Paths are found one
+	 * at a time as the stream is consumed, so only the directories currently
+	 * being listed are kept open in memory. The stream should be closed if it
+	 * is not consumed completely.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @return stream of paths found within directory and its subdirectories
+	 *
+	 * @see StreamingDirectoryListing
+	 */
+	public static Stream<Path> stream(Path path) {
+		LazyListing listing = new LazyListing(path);
+		Spliterator<Path> spliterator = Spliterators.spliteratorUnknownSize(listing,
+				Spliterator.DISTINCT | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(listing::close);
+	}
+
 	/**
 	 * Tests the directory listing for the current directory.
 	 *
@@ -56,4 +83,83 @@ public class SerialDirectoryListing {
 		}
 	}
 
+	// same order as the recursive listing, using a stack of open directories
+	private static class LazyListing implements Iterator<Path> {
+
+		private final ArrayDeque<DirectoryStream<Path>> streams;
+		private final ArrayDeque<Iterator<Path>> iterators;
+		private Path next;
+
+		public LazyListing(Path path) {
+			this.streams = new ArrayDeque<>();
+			this.iterators = new ArrayDeque<>();
+			this.next = null;
+			open(path);
+		}
+
+		private void open(Path path) {
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+				streams.push(stream);
+				iterators.push(stream.iterator());
+			}
+			catch (IOException ex) {
+				log.debug(ex.getMessage(), ex);
+			}
+		}
+
+		private void pop() {
+			iterators.pop();
+
+			try {
+				streams.pop().close();
+			}
+			catch (IOException ex) {
+				log.debug(ex.getMessage(), ex);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !iterators.isEmpty()) {
+				try {
+					if (iterators.peek().hasNext()) {
+						next = iterators.peek().next();
+					}
+					else {
+						pop();
+					}
+				}
+				catch (DirectoryIteratorException ex) {
+					log.debug(ex.getMessage(), ex);
+					pop();
+				}
+			}
+
+			return next != null;
+		}
+
+		@Override
+		public Path next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			Path current = next;
+			next = null;
+
+			// list the subdirectory before the rest of this directory
+			if (Files.isDirectory(current)) {
+				open(current);
+			}
+
+			return current;
+		}
+
+		public void close() {
+			while (!iterators.isEmpty()) {
+				pop();
+			}
+		}
+	}
 }
@@ -0,0 +1,99 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link WorkQueue} where each worker thread has its own deque of tasks. Any
+ * tasks submitted from within a worker thread are pushed onto that worker's
+ * deque instead of the shared queue, and idle workers will steal tasks from
+ * the other deques. This avoids funneling every task through a single lock
+ * when tasks create more tasks (like our recursive directory minions).
+ *
+ * Workers first run the newest task from their own deque, then check the
+ * shared queue, and finally steal the oldest task from another worker's
+ * deque. Deques belong to worker indices rather than threads, so a worker
+ * replaced for running past its timeout hands its deque to the new worker.
+ *
+ * @see WorkQueue
+ */
+public class StealingWorkQueue extends WorkQueue {
+
+	/** Tasks submitted by each worker, by worker index. */
+	private final ConcurrentLinkedDeque<Task>[] deques;
+
+	/**
+	 * Starts a work queue with the specified number of threads, using
+	 * per-worker deques and work stealing.
+	 *
+	 * @param threads
+	 *            number of worker threads; should be greater than 1
+	 */
+	@SuppressWarnings("unchecked")
+	public StealingWorkQueue(int threads) {
+		super(threads, new ArrayDeque<Task>());
+
+		this.deques = (ConcurrentLinkedDeque<Task>[]) new ConcurrentLinkedDeque<?>[threads];
+
+		for (int i = 0; i < threads; i++) {
+			deques[i] = new ConcurrentLinkedDeque<>();
+		}
+
+		start(threads);
+	}
+
+	/**
+	 * Pushes the task onto the deque of the submitting worker. No locking is
+	 * necessary, only waking up a worker to steal the new task if one is
+	 * currently waiting for work.
+	 */
+	@Override
+	protected boolean push(int worker, Task task) {
+		deques[worker].addLast(task);
+		return true;
+	}
+
+	/**
+	 * Pops the newest task from the deque of the worker.
+	 */
+	@Override
+	protected Task poll(int worker) {
+		return deques[worker].pollLast();
+	}
+
+	/**
+	 * Attempts to steal a task from the oldest end of another worker's deque.
+	 * Starts at a random worker to avoid every thief targeting the same deque.
+	 */
+	@Override
+	protected Task steal(int thief) {
+		int start = ThreadLocalRandom.current().nextInt(deques.length);
+
+		for (int i = 0; i < deques.length; i++) {
+			int victim = (start + i) % deques.length;
+
+			if (victim != thief) {
+				Task task = deques[victim].pollFirst();
+
+				if (task != null) {
+					return task;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Checks whether any worker deque has tasks that could be stolen.
+	 */
+	@Override
+	protected boolean hasLocalWork() {
+		for (ConcurrentLinkedDeque<Task> deque : deques) {
+			if (!deque.isEmpty()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Generates a directory listing as a lazy stream of paths using our simple
+ * work queue implementation. Instead of collecting every path into one large
+ * set, the workers hand off each path through a small bounded buffer to the
+ * thread consuming the stream. When the buffer is full, the workers wait until
+ * the consumer catches up, so counting, filtering, or writing the paths uses
+ * about the same amount of memory no matter how large the directory is. (The
+ * work queue still holds one small task per directory waiting to be listed.)
+ *
+ * <p>
+ * The stream should be closed if it is not consumed completely, for example
+ * by using a try-with-resources block. Otherwise, the workers will wait on
+ * the buffer forever. If the work queue rejects any directories (because it
+ * was shutdown, or is full and rejects new work), the listing ends early and
+ * the consumer gets a {@link RejectedExecutionException} instead of an
+ * incomplete listing.
+ *
+ * @see WorkQueueDirectoryListing
+ * @see SerialDirectoryListing#stream(Path)
+ */
+public class StreamingDirectoryListing implements Iterator<Path>, AutoCloseable {
+
+	/** Default number of paths the buffer can hold at once. */
+	public static final int CAPACITY = 1024;
+
+	/**
+	 * Returns a lazy directory listing for the given path, using its own work
+	 * queue that is shutdown when the stream is consumed or closed.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @return stream of paths found within directory and its subdirectories
+	 */
+	public static Stream<Path> stream(Path path) {
+		WorkQueue queue = new WorkQueue(WorkQueue.DEFAULT);
+		return stream(new StreamingDirectoryListing(path, queue, CAPACITY, true));
+	}
+
+	/**
+	 * Returns a lazy directory listing for the given path using an existing
+	 * work queue. The work queue is not shutdown, so it may be reused for
+	 * other listings.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param queue
+	 *            work queue to use
+	 * @param capacity
+	 *            number of paths the buffer can hold at once
+	 * @return stream of paths found within directory and its subdirectories
+	 * @throws RejectedExecutionException
+	 *             if the work queue does not accept the first directory
+	 */
+	public static Stream<Path> stream(Path path, WorkQueue queue, int capacity) {
+		return stream(new StreamingDirectoryListing(path, queue, capacity, false));
+	}
+
+	/**
+	 * Returns a lazy directory listing for the given path as an iterator
+	 * instead of a stream. Must be closed if not iterated through completely.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param queue
+	 *            work queue to use (is not shutdown)
+	 * @param capacity
+	 *            number of paths the buffer can hold at once
+	 * @return iterator of paths found within directory and its subdirectories
+	 * @throws RejectedExecutionException
+	 *             if the work queue does not accept the first directory
+	 */
+	public static StreamingDirectoryListing iterator(Path path, WorkQueue queue, int capacity) {
+		return new StreamingDirectoryListing(path, queue, capacity, false);
+	}
+
+	/**
+	 * Tests the directory listing for the current directory, counting the
+	 * paths without ever keeping them all in memory.
+	 *
+	 * @param args
+	 *            unused
+	 */
+	public static void main(String[] args) {
+		try (Stream<Path> paths = stream(Paths.get(".").normalize())) {
+			System.out.println(paths.count());
+		}
+	}
+
+	/* --------------------------------------- */
+
+	private static final Logger log = LogManager.getLogger();
+
+	/** How long workers wait for room in the buffer before checking again. */
+	private static final long WAIT = 100;
+
+	/** Marks the end of the listing; only ever compared by reference. */
+	private static final Path END = Paths.get("");
+
+	private final BlockingQueue<Path> buffer;
+	private final WorkQueue queue;
+	private final boolean owned;
+
+	// number of directories that have not finished being listed
+	private final AtomicInteger pending;
+
+	// set when the consumer stops early so the workers stop too
+	private volatile boolean cancelled;
+
+	// why the workers stopped early, if the work queue rejected a directory
+	private volatile RejectedExecutionException failure;
+
+	// only used by the consuming thread
+	private Path next;
+	private boolean done;
+
+	private StreamingDirectoryListing(Path path, WorkQueue queue, int capacity, boolean owned) {
+		this.buffer = new ArrayBlockingQueue<>(capacity);
+		this.queue = queue;
+		this.owned = owned;
+		this.pending = new AtomicInteger();
+		this.cancelled = false;
+		this.failure = null;
+		this.next = null;
+		this.done = false;
+
+		queue.execute(new DirectoryTask(path));
+	}
+
+	private static Stream<Path> stream(StreamingDirectoryListing listing) {
+		Spliterator<Path> spliterator = Spliterators.spliteratorUnknownSize(listing,
+				Spliterator.DISTINCT | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(listing::close);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !done) {
+			try {
+				next = buffer.take();
+			}
+			catch (InterruptedException ex) {
+				log.debug(ex.getMessage(), ex);
+				Thread.currentThread().interrupt();
+				next = END;
+			}
+
+			if (next == END) {
+				next = null;
+				close();
+
+				if (failure != null) {
+					throw new RejectedExecutionException("Unable to list every directory.", failure);
+				}
+			}
+		}
+
+		return next != null;
+	}
+
+	@Override
+	public Path next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		Path current = next;
+		next = null;
+		return current;
+	}
+
+	/**
+	 * Stops the listing early (if it is not already finished) and shuts down
+	 * the work queue if it was created for this listing. Safe to call more than
+	 * once.
+	 */
+	@Override
+	public void close() {
+		if (done) {
+			return;
+		}
+
+		done = true;
+		cancelled = true;
+
+		// workers check the flag at least every WAIT milliseconds, and any
+		// directories still queued return right away
+		buffer.clear();
+
+		if (owned) {
+			queue.shutdown();
+		}
+	}
+
+	/**
+	 * Stops the workers and wakes up the consumer after the work queue
+	 * rejected some of the directories, so the consumer gets the error instead
+	 * of waiting for paths that will never arrive.
+	 *
+	 * @param ex
+	 *            rejection from the work queue
+	 */
+	private void fail(RejectedExecutionException ex) {
+		log.warn("Work queue rejected directories; ending the listing early.");
+		log.debug(ex.getMessage(), ex);
+
+		if (failure == null) {
+			failure = ex;
+		}
+
+		cancelled = true;
+		buffer.clear();
+
+		// another worker may have added a path before seeing the flag
+		while (!buffer.offer(END)) {
+			buffer.poll();
+		}
+	}
+
+	/**
+	 * Hands off a path to the consumer, waiting while the buffer is full.
+	 *
+	 * @param path
+	 *            path to hand off
+	 * @return false if the listing was cancelled or interrupted first
+	 */
+	private boolean handoff(Path path) {
+		try {
+			while (!cancelled) {
+				if (buffer.offer(path, WAIT, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			log.debug(ex.getMessage(), ex);
+			Thread.currentThread().interrupt();
+		}
+
+		return false;
+	}
+
+	private class DirectoryTask implements Runnable {
+
+		private final Path path;
+
+		// claimed by whichever runs first: the task, or a worker giving up on
+		// it after the work queue rejected part of its batch
+		private final AtomicBoolean claimed;
+
+		public DirectoryTask(Path path) {
+			this.path = path;
+			this.claimed = new AtomicBoolean();
+			pending.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			if (!claimed.compareAndSet(false, true)) {
+				// already given up on and no longer counted as pending
+				return;
+			}
+
+			try {
+				list();
+			}
+			finally {
+				// the last directory to finish ends the stream
+				if (pending.decrementAndGet() == 0) {
+					handoff(END);
+				}
+			}
+		}
+
+		private void list() {
+			if (cancelled) {
+				return;
+			}
+
+			ArrayList<DirectoryTask> tasks = new ArrayList<>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for (Path current : stream) {
+					if (!handoff(current)) {
+						break;
+					}
+
+					if (Files.isDirectory(current)) {
+						tasks.add(new DirectoryTask(current));
+					}
+				}
+			}
+			catch (IOException ex) {
+				log.debug(ex.getMessage(), ex);
+			}
+
+			// queued tasks return right away if the listing was cancelled
+			if (!cancelled) {
+				try {
+					queue.executeAll(tasks);
+				}
+				catch (RejectedExecutionException ex) {
+					// some tasks may have been queued before the rest were
+					// rejected, so give up on every task not yet started
+					int dropped = 0;
+
+					for (DirectoryTask task : tasks) {
+						if (task.claimed.compareAndSet(false, true)) {
+							dropped++;
+						}
+					}
+
+					pending.addAndGet(-dropped);
+					fail(ex);
+				}
+			}
+			else {
+				pending.addAndGet(-tasks.size());
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "DirectoryTask[" + path + "]";
+		}
+	}
+}
@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compares how many context switches it takes to run each task using the work
+ * queue (which wakes up one waiting worker per task) against a work queue that
+ * wakes up every waiting worker with {@code notifyAll()}, like the original
+ * IBM developerWorks article. Tasks are submitted in bursts and each burst
+ * finishes before the next starts, so most workers are waiting whenever a task
+ * is submitted. This is the worst case for {@code notifyAll()}.
+ *
+ * Context switches are read from {@code /proc/self/task} and include every
+ * thread in this process, so this benchmark only reports them on Linux. The
+ * results depend heavily on the number of processors. With only one processor,
+ * the workers woken up by {@code notifyAll()} run one after another, so one
+ * worker often runs an entire burst by itself while the rest find nothing to
+ * do; waking up one worker per task only pays off for single tasks there.
+ */
+public class WakeupBenchmark {
+
+	public static final int THREADS = 32;
+	public static final int[] BURSTS = { 1, 4, 16 };
+	public static final int WARMUP_TASKS = 10000;
+	public static final int TIMED_TASKS = 50000;
+
+	public static void main(String[] args) {
+		System.out.println("Benchmarking work queue wakeups...");
+		WorkQueue queue = new WorkQueue(THREADS);
+		double[][] targeted = new Benchmarker() {
+			@Override
+			public void execute(Runnable r) {
+				queue.execute(r);
+			}
+		}.benchmark();
+		queue.shutdown();
+
+		System.out.println("Benchmarking notifyAll() wakeups...");
+		NotifyAllQueue legacy = new NotifyAllQueue(THREADS);
+		double[][] herd = new Benchmarker() {
+			@Override
+			public void execute(Runnable r) {
+				legacy.execute(r);
+			}
+		}.benchmark();
+		legacy.shutdown();
+
+		System.out.println();
+		System.out.println(String.format("%d threads, %d processors", THREADS,
+				Runtime.getRuntime().availableProcessors()));
+
+		for (int i = 0; i < BURSTS.length; i++) {
+			System.out.println(String.format("%14s %2d: %8.2f switches/task %8.2fus/task", "Work Queue",
+					BURSTS[i], targeted[i][0], targeted[i][1]));
+			System.out.println(String.format("%14s %2d: %8.2f switches/task %8.2fus/task", "notifyAll()",
+					BURSTS[i], herd[i][0], herd[i][1]));
+		}
+	}
+
+	/**
+	 * Returns the total number of context switches made by every thread in
+	 * this process so far, or -1 if not available (not running on Linux).
+	 * Threads that already exited are not included.
+	 *
+	 * @return number of context switches or -1
+	 */
+	private static long contextSwitches() {
+		Path tasks = Paths.get("/proc/self/task");
+
+		if (!Files.isDirectory(tasks)) {
+			return -1;
+		}
+
+		long total = 0;
+
+		try (DirectoryStream<Path> listing = Files.newDirectoryStream(tasks)) {
+			for (Path task : listing) {
+				try {
+					for (String line : Files.readAllLines(task.resolve("status"))) {
+						// counts both voluntary and nonvoluntary switches
+						if (line.contains("ctxt_switches:")) {
+							total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+						}
+					}
+				}
+				catch (IOException e) {
+					// thread exited while reading
+				}
+			}
+		}
+		catch (IOException e) {
+			return -1;
+		}
+
+		return total;
+	}
+
+	private static abstract class Benchmarker {
+		public abstract void execute(Runnable r);
+
+		/**
+		 * Runs the specified number of tasks in bursts, waiting for each burst
+		 * to finish before submitting the next one.
+		 *
+		 * @param tasks
+		 *            number of tasks to run
+		 * @param burst
+		 *            number of tasks to submit at once
+		 */
+		private void run(int tasks, int burst) {
+			Semaphore done = new Semaphore(0);
+			Runnable task = done::release;
+
+			for (int i = 0; i < tasks; i += burst) {
+				for (int j = 0; j < burst; j++) {
+					execute(task);
+				}
+
+				done.acquireUninterruptibly(burst);
+			}
+		}
+
+		/**
+		 * Returns the average context switches and microseconds per task for
+		 * each burst size in {@link #BURSTS}.
+		 *
+		 * @return context switches (or -1 if not available) and microseconds
+		 *         per task for each burst size
+		 */
+		public double[][] benchmark() {
+			double[][] results = new double[BURSTS.length][];
+
+			for (int i = 0; i < BURSTS.length; i++) {
+				// warmup
+				run(WARMUP_TASKS, BURSTS[i]);
+
+				// timed
+				long before = contextSwitches();
+				Instant start = Instant.now();
+				run(TIMED_TASKS, BURSTS[i]);
+				Instant end = Instant.now();
+				long after = contextSwitches();
+
+				double switches = before < 0 || after < 0 ? -1 : (double) (after - before) / TIMED_TASKS;
+				double micros = Duration.between(start, end).toNanos() / 1000.0 / TIMED_TASKS;
+				results[i] = new double[] { switches, micros };
+			}
+
+			return results;
+		}
+	}
+
+	/**
+	 * A work queue that wakes up every waiting worker whenever a task is
+	 * added, for comparison. Based on the original work queue from the IBM
+	 * developerWorks article by Brian Goetz.
+	 */
+	private static class NotifyAllQueue {
+
+		private final LinkedList<Runnable> queue;
+		private volatile boolean shutdown;
+
+		public NotifyAllQueue(int threads) {
+			this.queue = new LinkedList<Runnable>();
+			this.shutdown = false;
+
+			for (int i = 0; i < threads; i++) {
+				new Thread(this::work).start();
+			}
+		}
+
+		public void execute(Runnable r) {
+			synchronized (queue) {
+				queue.addLast(r);
+				queue.notifyAll();
+			}
+		}
+
+		public void shutdown() {
+			shutdown = true;
+
+			synchronized (queue) {
+				queue.notifyAll();
+			}
+		}
+
+		private void work() {
+			while (true) {
+				Runnable r = null;
+
+				synchronized (queue) {
+					while (queue.isEmpty() && !shutdown) {
+						try {
+							queue.wait();
+						}
+						catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+					}
+
+					if (shutdown) {
+						return;
+					}
+
+					r = queue.removeFirst();
+				}
+
+				r.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,278 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a task submitted to a {@link WorkQueue}. This is a lighter
+ * version of {@link java.util.concurrent.FutureTask} that also supports
+ * {@link #join()}, which runs the task in the calling thread if no worker has
+ * started running it yet. This way, a task that waits on the results of the
+ * tasks it created usually does the remaining work itself instead of blocking
+ * a worker thread.
+ *
+ * Unlike {@link java.util.concurrent.FutureTask}, a task that is cancelled
+ * while running is reported as cancelled right away, even if the task ignores
+ * the interrupt and keeps running for a while.
+ *
+ * @param <V>
+ *            type of result
+ *
+ * @see WorkQueue#submit(Callable)
+ * @see WorkScope
+ */
+public class WorkFuture<V> implements RunnableFuture<V> {
+
+	/** The task has not started running yet. */
+	private static final int NEW = 0;
+
+	/** The task is running. */
+	private static final int RUNNING = 1;
+
+	/** The task finished running (with or without an exception). */
+	private static final int DONE = 2;
+
+	/** The task was cancelled. */
+	private static final int CANCELLED = 3;
+
+	/** Task to run, set to null once finished so it can be collected. */
+	private Callable<? extends V> callable;
+
+	/** Current state, only ever moves forward. Only modified while locked. */
+	private volatile int state;
+
+	/** Thread running the task, if running. Only accessed while locked. */
+	private Thread runner;
+
+	/** Result of the task, only safe to read once the task is done. */
+	private V value;
+
+	/** Exception thrown by the task, only safe to read once done. */
+	private Throwable error;
+
+	/**
+	 * Initializes a future for the specified task.
+	 *
+	 * @param callable
+	 *            task to run
+	 */
+	public WorkFuture(Callable<? extends V> callable) {
+		this.callable = callable;
+		this.state = NEW;
+		this.runner = null;
+	}
+
+	/**
+	 * Runs the task unless it has already been started or cancelled, in which
+	 * case this does nothing.
+	 */
+	@Override
+	public void run() {
+		Callable<? extends V> task;
+
+		// makes sure only one thread ever runs the task
+		synchronized (this) {
+			if (state != NEW) {
+				return;
+			}
+
+			task = callable;
+			state = RUNNING;
+			runner = Thread.currentThread();
+		}
+
+		V result = null;
+		Throwable thrown = null;
+
+		try {
+			result = task.call();
+		}
+		catch (Throwable t) {
+			thrown = t;
+		}
+
+		synchronized (this) {
+			runner = null;
+			callable = null;
+
+			// ignore the result if cancelled while running
+			if (state == RUNNING) {
+				value = result;
+				error = thrown;
+				state = DONE;
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Cancels the task if it is not done yet. If the task is already running,
+	 * it is only cancelled if allowed to interrupt the thread running it.
+	 *
+	 * @param mayInterruptIfRunning
+	 *            whether to interrupt the task if it is running
+	 * @return true if the task was cancelled
+	 */
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (state == NEW || (state == RUNNING && mayInterruptIfRunning)) {
+			if (runner != null) {
+				runner.interrupt();
+			}
+			else {
+				callable = null;
+			}
+
+			state = CANCELLED;
+			this.notifyAll();
+			return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return state == CANCELLED;
+	}
+
+	@Override
+	public boolean isDone() {
+		return state >= DONE;
+	}
+
+	/**
+	 * Waits for the task to finish and returns its result.
+	 *
+	 * @return result of the task
+	 * @throws CancellationException
+	 *             if the task was cancelled
+	 * @throws ExecutionException
+	 *             if the task threw an exception
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		synchronized (this) {
+			while (!isDone()) {
+				this.wait();
+			}
+		}
+
+		return report();
+	}
+
+	/**
+	 * Waits for the task to finish, or the specified amount of time to pass,
+	 * and returns its result.
+	 *
+	 * @param timeout
+	 *            maximum amount of time to wait
+	 * @param unit
+	 *            time unit of the timeout
+	 * @return result of the task
+	 * @throws CancellationException
+	 *             if the task was cancelled
+	 * @throws ExecutionException
+	 *             if the task threw an exception
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 * @throws TimeoutException
+	 *             if the timeout passed first
+	 */
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long remaining = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + remaining;
+
+		synchronized (this) {
+			while (!isDone()) {
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+		}
+
+		return report();
+	}
+
+	/**
+	 * Returns the result of the task, running it in this thread first if no
+	 * worker has started it yet. Otherwise waits until the worker running the
+	 * task is done. If interrupted while waiting (for example, because the
+	 * calling task ran past its timeout), stops waiting and keeps the thread
+	 * interrupted, so a stuck task does not also hold up the task joining it.
+	 *
+	 * @return result of the task
+	 * @throws CancellationException
+	 *             if the task was cancelled
+	 * @throws CompletionException
+	 *             if the task threw an exception, or if interrupted while
+	 *             waiting (with the {@link InterruptedException} as the cause)
+	 */
+	public V join() {
+		run();
+
+		synchronized (this) {
+			while (!isDone()) {
+				try {
+					this.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CompletionException(e);
+				}
+			}
+		}
+
+		try {
+			return report();
+		}
+		catch (ExecutionException e) {
+			throw new CompletionException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the result of a finished task.
+	 *
+	 * @return result of the task
+	 * @throws CancellationException
+	 *             if the task was cancelled
+	 * @throws ExecutionException
+	 *             if the task threw an exception
+	 */
+	private V report() throws ExecutionException {
+		if (state == CANCELLED) {
+			throw new CancellationException();
+		}
+
+		if (error != null) {
+			throw new ExecutionException(error);
+		}
+
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		switch (state) {
+			case NEW:
+				return "WorkFuture[new: " + callable + "]";
+			case RUNNING:
+				return "WorkFuture[running: " + callable + "]";
+			case CANCELLED:
+				return "WorkFuture[cancelled]";
+			default:
+				return error == null ? "WorkFuture[done]" : "WorkFuture[failed: " + error + "]";
+		}
+	}
+}
@@ -3,6 +3,7 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -22,11 +23,45 @@ public class WorkQueueDirectoryListing {
 	 * @return paths found within directory and its subdirectories
 	 */
 	public static Set<Path> list(Path path) {
-		WorkQueueDirectoryListing workers = new WorkQueueDirectoryListing();
-		workers.parse(path);
+		return list(path, false);
+	}
+
+	/**
+	 * Returns a directory listing for the given path, optionally using a work
+	 * queue with per-worker deques and work stealing.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param stealing
+	 *            whether the work queue should use work stealing
+	 * @return paths found within directory and its subdirectories
+	 *
+	 * @see StealingWorkQueue
+	 */
+	public static Set<Path> list(Path path, boolean stealing) {
+		WorkQueue queue = stealing ? new StealingWorkQueue(WorkQueue.DEFAULT) : new WorkQueue(WorkQueue.DEFAULT);
+		Set<Path> paths = list(path, queue);
 
 		// since we create the work queue, we should shutdown the queue too
-		workers.queue.shutdown();
+		queue.shutdown();
+		return paths;
+	}
+
+	/**
+	 * Returns a directory listing for the given path using an existing work
+	 * queue. The work queue is not shutdown, so it may be reused for other
+	 * listings without starting new threads each time.
+	 *
+	 * @param path
+	 *            directory to create listing
+	 * @param queue
+	 *            work queue to use (should not be used by anything else
+	 *            until the listing is returned)
+	 * @return paths found within directory and its subdirectories
+	 */
+	public static Set<Path> list(Path path, WorkQueue queue) {
+		WorkQueueDirectoryListing workers = new WorkQueueDirectoryListing(queue);
+		workers.parse(path);
 
 		// return the value (we can access the private members!)
 		return workers.paths;
@@ -48,42 +83,17 @@ public class WorkQueueDirectoryListing {
 
 	private final Set<Path> paths;
 	private final WorkQueue queue;
-	private int pending;
 
-	private WorkQueueDirectoryListing() {
+	private WorkQueueDirectoryListing(WorkQueue queue) {
 		this.paths = new HashSet<>();
-		this.queue = new WorkQueue();
-		this.pending = 0;
+		this.queue = queue;
 	}
 
 	private void parse(Path path) {
 		queue.execute(new DirectoryTask(path));
 
-		// putting this here instead of a finally method since this is
-		// a private class and we don't need the extra functionality
-		synchronized (this) {
-			while (pending != 0) {
-				try {
-					this.wait();
-				}
-				catch (InterruptedException ex) {
-					log.debug(ex.getMessage(), ex);
-				}
-			}
-		}
-	}
-
-	private synchronized void incrementPending() {
-		pending++;
-	}
-
-	private synchronized void decrementPending() {
-		assert pending > 0;
-		pending--;
-
-		if (pending == 0) {
-			this.notifyAll();
-		}
+		// the work queue keeps track of pending work for us
+		queue.finish();
 	}
 
 	private synchronized void addAll(Set<Path> local) {
@@ -96,20 +106,20 @@ public class WorkQueueDirectoryListing {
 
 		public DirectoryTask(Path path) {
 			this.path = path;
-			incrementPending();
 		}
 
 		@Override
 		public void run() {
 			// make sure to use local "subresults"
 			HashSet<Path> local = new HashSet<>();
+			ArrayList<DirectoryTask> tasks = new ArrayList<>();
 
 			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
 				for (Path current : stream) {
 					local.add(current);
 
 					if (Files.isDirectory(current)) {
-						queue.execute(new DirectoryTask(current));
+						tasks.add(new DirectoryTask(current));
 					}
 				}
 			}
@@ -117,9 +127,16 @@ public class WorkQueueDirectoryListing {
 				log.debug(ex.getMessage(), ex);
 			}
 
+			// add all of the subdirectories to the queue at once
+			queue.executeAll(tasks);
+
 			// don't call blocking methods until absolutely have to
 			addAll(local);
-			decrementPending();
+		}
+
+		@Override
+		public String toString() {
+			return "DirectoryTask[" + path + "]";
 		}
 	}
 }
@@ -0,0 +1,423 @@
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps track of counters and timing histograms for a {@link WorkQueue}. All
+ * of the counters are updated without locking, and recording a value never
+ * creates any new objects, so the worker threads may record every task
+ * without slowing down. The values may be queried at any time, or logged
+ * periodically using {@link #startReporter(long, TimeUnit)}.
+ *
+ * @see WorkQueue#metrics()
+ */
+public class WorkQueueMetrics {
+
+	private static final Logger log = LogManager.getLogger();
+
+	/** Maximum number of workers to track idle time for individually. */
+	public static final int MAX_WORKERS = 1024;
+
+	/** Number of tasks accepted by the work queue. */
+	private final LongAdder submitted;
+
+	/** Number of tasks that finished running (with or without an exception). */
+	private final LongAdder completed;
+
+	/** Number of tasks that threw an exception while running. */
+	private final LongAdder failed;
+
+	/** Number of tasks rejected by the work queue. */
+	private final LongAdder rejected;
+
+	/** Number of tasks interrupted for running past their timeout. */
+	private final LongAdder timedOut;
+
+	/** Number of tasks currently waiting to be run. */
+	private final LongAdder queued;
+
+	/** Nanoseconds each task waited in the queue before running. */
+	private final Histogram waitTime;
+
+	/** Nanoseconds each task spent running. */
+	private final Histogram runTime;
+
+	/** Nanoseconds each worker spent waiting for work at a time. */
+	private final Histogram idleTime;
+
+	/** Total nanoseconds each worker spent waiting for work. */
+	private final AtomicLongArray workerIdle;
+
+	/** Used to periodically log the metrics, or null if not reporting. */
+	private Timer reporter;
+
+	/**
+	 * Initializes the metrics for a work queue with up to the specified number
+	 * of workers. Idle time is only tracked individually for the first
+	 * {@link #MAX_WORKERS} workers.
+	 *
+	 * @param workers
+	 *            maximum number of workers in the work queue
+	 */
+	public WorkQueueMetrics(int workers) {
+		this.submitted = new LongAdder();
+		this.completed = new LongAdder();
+		this.failed = new LongAdder();
+		this.rejected = new LongAdder();
+		this.timedOut = new LongAdder();
+		this.queued = new LongAdder();
+
+		this.waitTime = new Histogram();
+		this.runTime = new Histogram();
+		this.idleTime = new Histogram();
+
+		this.workerIdle = new AtomicLongArray(workers);
+		this.reporter = null;
+	}
+
+	/**
+	 * Records that a task was added to the queue.
+	 */
+	void taskQueued() {
+		submitted.increment();
+		queued.increment();
+	}
+
+	/**
+	 * Records that several tasks were added to the queue at once.
+	 *
+	 * @param count
+	 *            number of tasks
+	 */
+	void tasksQueued(int count) {
+		submitted.add(count);
+		queued.add(count);
+	}
+
+	/**
+	 * Records that a task was run by the submitter instead of being queued.
+	 */
+	void taskBypassed() {
+		submitted.increment();
+	}
+
+	/**
+	 * Records that a task was rejected.
+	 */
+	void taskRejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * Records that several tasks were rejected at once.
+	 *
+	 * @param count
+	 *            number of tasks
+	 */
+	void tasksRejected(int count) {
+		rejected.add(count);
+	}
+
+	/**
+	 * Records that a task was removed from the queue.
+	 *
+	 * @param waited
+	 *            nanoseconds the task waited in the queue
+	 */
+	void taskTaken(long waited) {
+		queued.decrement();
+		waitTime.record(waited);
+	}
+
+	/**
+	 * Records that a task was removed from the queue without being run.
+	 */
+	void taskDropped() {
+		queued.decrement();
+	}
+
+	/**
+	 * Records that a task finished running.
+	 *
+	 * @param elapsed
+	 *            nanoseconds the task spent running
+	 * @param success
+	 *            false if the task threw an exception
+	 */
+	void taskCompleted(long elapsed, boolean success) {
+		completed.increment();
+		runTime.record(elapsed);
+
+		if (!success) {
+			failed.increment();
+		}
+	}
+
+	/**
+	 * Records that a task was interrupted for running past its timeout. The
+	 * task also counts as completed and failed.
+	 *
+	 * @param elapsed
+	 *            nanoseconds the task ran before timing out
+	 */
+	void taskTimedOut(long elapsed) {
+		timedOut.increment();
+		taskCompleted(elapsed, false);
+	}
+
+	/**
+	 * Records that a worker spent time waiting for work.
+	 *
+	 * @param worker
+	 *            index of the worker
+	 * @param elapsed
+	 *            nanoseconds spent waiting
+	 */
+	void workerIdled(int worker, long elapsed) {
+		idleTime.record(elapsed);
+
+		if (worker < workerIdle.length()) {
+			workerIdle.addAndGet(worker, elapsed);
+		}
+	}
+
+	/**
+	 * Returns the number of tasks accepted by the work queue, including tasks
+	 * run by the submitter when the queue was full.
+	 *
+	 * @return number of submitted tasks
+	 */
+	public long submitted() {
+		return submitted.sum();
+	}
+
+	/**
+	 * Returns the number of tasks that finished running.
+	 *
+	 * @return number of completed tasks
+	 */
+	public long completed() {
+		return completed.sum();
+	}
+
+	/**
+	 * Returns the number of tasks that threw an exception while running.
+	 *
+	 * @return number of failed tasks
+	 */
+	public long failed() {
+		return failed.sum();
+	}
+
+	/**
+	 * Returns the number of tasks rejected by the work queue.
+	 *
+	 * @return number of rejected tasks
+	 */
+	public long rejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Returns the number of tasks interrupted for running past their timeout.
+	 *
+	 * @return number of timed out tasks
+	 */
+	public long timedOut() {
+		return timedOut.sum();
+	}
+
+	/**
+	 * Returns the number of tasks currently waiting to be run.
+	 *
+	 * @return queue depth
+	 */
+	public long queued() {
+		return queued.sum();
+	}
+
+	/**
+	 * Returns the histogram of nanoseconds tasks waited in the queue.
+	 *
+	 * @return queue wait time histogram
+	 */
+	public Histogram waitTime() {
+		return waitTime;
+	}
+
+	/**
+	 * Returns the histogram of nanoseconds tasks spent running.
+	 *
+	 * @return task run time histogram
+	 */
+	public Histogram runTime() {
+		return runTime;
+	}
+
+	/**
+	 * Returns the histogram of nanoseconds workers spent waiting for work.
+	 *
+	 * @return worker idle time histogram
+	 */
+	public Histogram idleTime() {
+		return idleTime;
+	}
+
+	/**
+	 * Returns the total nanoseconds each worker has spent waiting for work.
+	 *
+	 * @return idle nanoseconds indexed by worker
+	 */
+	public long[] workerIdleTimes() {
+		long[] times = new long[workerIdle.length()];
+
+		for (int i = 0; i < times.length; i++) {
+			times[i] = workerIdle.get(i);
+		}
+
+		return times;
+	}
+
+	/**
+	 * Starts logging these metrics at the specified interval using a
+	 * background daemon thread. Replaces any reporter already running.
+	 *
+	 * @param period
+	 *            time between reports
+	 * @param unit
+	 *            time unit of the period
+	 */
+	public synchronized void startReporter(long period, TimeUnit unit) {
+		stopReporter();
+
+		long millis = Math.max(1, unit.toMillis(period));
+
+		reporter = new Timer("WorkQueueMetrics", true);
+		reporter.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				log.info(WorkQueueMetrics.this);
+			}
+		}, millis, millis);
+	}
+
+	/**
+	 * Stops logging these metrics, if a reporter is running.
+	 */
+	public synchronized void stopReporter() {
+		if (reporter != null) {
+			reporter.cancel();
+			reporter = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("submitted %d, completed %d, failed %d, timed out %d, rejected %d, queued %d; " +
+				"wait %s; run %s; idle %s", submitted(), completed(), failed(), timedOut(), rejected(), queued(),
+				waitTime, runTime, idleTime);
+	}
+
+	/**
+	 * A histogram of nanosecond durations. Values are counted in buckets by
+	 * powers of two, so the histogram uses a fixed amount of memory and
+	 * recording a value only requires a couple of atomic operations.
+	 */
+	public static class Histogram {
+
+		/** Bucket {@code i} counts values with {@code i} significant bits. */
+		private final AtomicLongArray buckets;
+
+		/** Sum of all recorded values. */
+		private final LongAdder total;
+
+		/**
+		 * Initializes an empty histogram.
+		 */
+		public Histogram() {
+			this.buckets = new AtomicLongArray(Long.SIZE);
+			this.total = new LongAdder();
+		}
+
+		/**
+		 * Records a value in this histogram.
+		 *
+		 * @param nanos
+		 *            duration to record; negative values are treated as 0
+		 */
+		public void record(long nanos) {
+			nanos = Math.max(0, nanos);
+			buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+			total.add(nanos);
+		}
+
+		/**
+		 * Returns the number of values recorded.
+		 *
+		 * @return number of values
+		 */
+		public long count() {
+			long count = 0;
+
+			for (int i = 0; i < buckets.length(); i++) {
+				count += buckets.get(i);
+			}
+
+			return count;
+		}
+
+		/**
+		 * Returns the average of the values recorded.
+		 *
+		 * @return average value or 0 if no values were recorded
+		 */
+		public double mean() {
+			long count = count();
+			return count == 0 ? 0 : (double) total.sum() / count;
+		}
+
+		/**
+		 * Returns an upper bound on the specified percentile of the values
+		 * recorded. Since values are grouped by powers of two, the result may
+		 * be up to twice the actual percentile.
+		 *
+		 * @param percentile
+		 *            percentile between 0 and 100
+		 * @return upper bound of the percentile or 0 if no values were recorded
+		 */
+		public long percentile(double percentile) {
+			long[] counts = new long[buckets.length()];
+			long count = 0;
+
+			// copy first so the result is consistent with itself
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+				count += counts[i];
+			}
+
+			long target = (long) Math.ceil(count * percentile / 100.0);
+			long seen = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+
+				if (seen >= target && seen > 0) {
+					return (1L << i) - 1;
+				}
+			}
+
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count %d, mean %.3fms, p50 %.3fms, p99 %.3fms", count(), mean() / 1e6,
+					percentile(50) / 1e6, percentile(99) / 1e6);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Runs a check for a {@link WorkQueue} periodically on a background timer
+ * thread, for example to find tasks running past their timeout. The timer is
+ * only started once a period is requested, and is restarted whenever a
+ * shorter period is requested. Once cancelled, the check is never run again.
+ *
+ * This class is thread-safe.
+ *
+ * @see WorkQueue#setTaskTimeout(long, java.util.concurrent.TimeUnit)
+ */
+public class WorkQueueWatchdog {
+
+	/** Name of the timer thread. */
+	private final String name;
+
+	/** Check to run periodically. */
+	private final Runnable check;
+
+	/** Runs the check, or null if not started. */
+	private Timer timer;
+
+	/** Milliseconds between checks, or 0 if not started. */
+	private volatile long period;
+
+	/** Whether this watchdog was cancelled. */
+	private boolean cancelled;
+
+	/**
+	 * Initializes a watchdog that is not started yet.
+	 *
+	 * @param name
+	 *            name of the timer thread
+	 * @param check
+	 *            check to run periodically
+	 */
+	public WorkQueueWatchdog(String name, Runnable check) {
+		this.name = name;
+		this.check = check;
+		this.timer = null;
+		this.period = 0;
+		this.cancelled = false;
+	}
+
+	/**
+	 * Makes sure the check runs at least as often as the specified period,
+	 * starting the timer if necessary.
+	 *
+	 * @param millis
+	 *            milliseconds between checks
+	 */
+	public void every(long millis) {
+		// avoid locking if already checking often enough
+		if (period > 0 && period <= millis) {
+			return;
+		}
+
+		synchronized (this) {
+			if (cancelled || (period > 0 && period <= millis)) {
+				return;
+			}
+
+			if (timer != null) {
+				timer.cancel();
+			}
+
+			timer = new Timer(name, true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					check.run();
+				}
+			}, millis, millis);
+
+			period = millis;
+		}
+	}
+
+	/**
+	 * Stops running the check for good.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+			period = 0;
+		}
+	}
+}
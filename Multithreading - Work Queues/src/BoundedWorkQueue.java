@@ -0,0 +1,158 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A {@link WorkQueue} that holds at most a fixed number of waiting tasks. When
+ * the queue is full, the {@link Overflow} policy determines whether the
+ * submitter blocks, runs the task itself, or has the task rejected. This keeps
+ * memory usage flat when tasks are created much faster than they can be run.
+ *
+ * @see WorkQueue
+ */
+public class BoundedWorkQueue extends WorkQueue {
+
+	/** Maximum number of queued tasks, or {@link #UNBOUNDED}. */
+	private final int capacity;
+
+	/** Free slots for queued tasks. */
+	private final Semaphore slots;
+
+	/** What to do when the queue is full. */
+	private final Overflow overflow;
+
+	/** Indicates the work queue should not limit the number of queued tasks. */
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+	/**
+	 * Determines what happens when a task is submitted to a bounded work queue
+	 * that is already full.
+	 */
+	public static enum Overflow {
+		/**
+		 * The submitter waits until there is room in the queue. Tasks
+		 * submitted by workers of this queue are run by the submitting worker
+		 * instead, since blocking every worker would deadlock the queue. A
+		 * submitter interrupted while waiting has the task rejected with a
+		 * {@link RejectedExecutionException} (and stays interrupted).
+		 */
+		BLOCK,
+
+		/** The submitter runs the task itself. */
+		CALLER_RUNS,
+
+		/** The task is rejected with a {@link RejectedExecutionException}. */
+		REJECT
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads that holds at
+	 * most the specified number of waiting tasks. Submitters will block when
+	 * the queue is full.
+	 *
+	 * @param threads
+	 *            number of worker threads; should be greater than 1
+	 * @param capacity
+	 *            maximum number of waiting tasks; should be positive
+	 *
+	 * @see Overflow#BLOCK
+	 */
+	public BoundedWorkQueue(int threads, int capacity) {
+		this(threads, capacity, Overflow.BLOCK);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads that holds at
+	 * most the specified number of waiting tasks.
+	 *
+	 * @param threads
+	 *            number of worker threads; should be greater than 1
+	 * @param capacity
+	 *            maximum number of waiting tasks; should be positive or
+	 *            {@link #UNBOUNDED}
+	 * @param overflow
+	 *            what to do when the queue is full
+	 */
+	public BoundedWorkQueue(int threads, int capacity, Overflow overflow) {
+		// only preallocate space for bounded queues
+		super(threads, new ArrayDeque<Task>(capacity == UNBOUNDED ? 16 : Math.max(1, capacity)));
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive.");
+		}
+
+		this.capacity = capacity;
+		this.slots = new Semaphore(capacity);
+		this.overflow = overflow;
+
+		start(threads);
+	}
+
+	/**
+	 * Returns the maximum number of tasks that may wait in this work queue.
+	 *
+	 * @return capacity of the work queue or {@link #UNBOUNDED}
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Takes a free slot for the task, or applies the {@link Overflow} policy
+	 * if the queue is full.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the queue is full and uses the {@link Overflow#REJECT}
+	 *             policy, or if interrupted while waiting for room in the
+	 *             queue
+	 */
+	@Override
+	protected boolean admit(Task task, boolean worker) {
+		if (slots.tryAcquire()) {
+			return true;
+		}
+
+		if (overflow == Overflow.REJECT) {
+			throw new RejectedExecutionException("Work queue is full.");
+		}
+
+		// workers may not block, since it is possible every worker is waiting
+		// on a full queue at the same time
+		if (overflow == Overflow.CALLER_RUNS || worker) {
+			return false;
+		}
+
+		try {
+			slots.acquire();
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for room in the work queue.");
+		}
+	}
+
+	/**
+	 * Takes as many free slots as are available for the batch, without
+	 * waiting. The rest of the batch is submitted one task at a time according
+	 * to the {@link Overflow} policy.
+	 */
+	@Override
+	protected int admitAll(int count) {
+		int accepted = 0;
+
+		while (accepted < count && slots.tryAcquire()) {
+			accepted++;
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Frees up the slots used by tasks that left the queue.
+	 */
+	@Override
+	protected void removed(int count) {
+		slots.release(count);
+	}
+}
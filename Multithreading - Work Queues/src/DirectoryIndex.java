@@ -0,0 +1,413 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers the number of files and bytes directly inside each directory
+ * (not counting subdirectories), along with the subdirectories and the last
+ * modified time of the directory. The directory size calculators use this to
+ * skip listing a directory and checking the size of each of its files when the
+ * directory has not been modified since it was last scanned. The index may be
+ * saved to a file and loaded again later, so rescans of a mostly unchanged
+ * volume only need to check the modified time of each directory.
+ *
+ * The totals from an index are approximate. The modified time of a directory
+ * only changes when entries are added, removed, or renamed directly inside
+ * that directory. It does not change when a subdirectory changes, which is
+ * why each directory is still checked individually instead of skipping entire
+ * subtrees. It also does not change when an existing file is modified in
+ * place, so the cached byte count of a directory is stale if a file grew or
+ * shrank without being replaced, and nothing reports that it is stale. Check
+ * each file instead (by using no index) when exact byte counts are required;
+ * {@link #hits()} tells whether any cached totals were used.
+ *
+ * This class is thread-safe.
+ *
+ * @see DirectorySizeCalculator#DirectorySizeCalculator(DirectoryIndex)
+ * @see MultithreadedDirectorySizeCalculator#MultithreadedDirectorySizeCalculator(int,
+ *      int, DirectoryIndex)
+ */
+public class DirectoryIndex {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	/** Identifies (and versions) saved index files. */
+	private static final int MAGIC = 0x44495831;
+
+	/**
+	 * Milliseconds a directory must have been unmodified when it was scanned
+	 * before its cached totals are trusted. Some file systems only store
+	 * modified times to the nearest second or two, so a directory modified
+	 * again right after being scanned may keep the same modified time.
+	 */
+	public static final long RACY_MILLIS = 2000;
+
+	/** Cached totals by absolute, normalized directory path. */
+	private final Map<Path, Entry> entries;
+
+	/** Number of directories whose cached totals were reused. */
+	private final LongAdder hits;
+
+	/** Number of directories that had to be scanned. */
+	private final LongAdder misses;
+
+	/**
+	 * Initializes an empty index.
+	 */
+	public DirectoryIndex() {
+		this.entries = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Returns the cached totals for a directory, if the directory has not been
+	 * modified since the totals were cached. The byte count may be stale if a
+	 * file in the directory was modified in place since then.
+	 *
+	 * @param directory
+	 *            directory to look up
+	 * @param modified
+	 *            current last modified time of the directory
+	 * @return cached totals, or null if there are none or they are out of date
+	 */
+	public Entry lookup(Path directory, FileTime modified) {
+		Entry entry = entries.get(key(directory));
+		long millis = modified.toMillis();
+
+		if (entry != null && entry.modified == millis && millis < entry.scanned - RACY_MILLIS) {
+			hits.increment();
+			return entry;
+		}
+
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Caches the totals for a directory that was just scanned. Any cached
+	 * totals for subdirectories that no longer exist are removed.
+	 *
+	 * @param directory
+	 *            directory that was scanned
+	 * @param modified
+	 *            last modified time of the directory before it was scanned
+	 * @param scanned
+	 *            when the directory was scanned, in milliseconds since the
+	 *            epoch (from before it was listed)
+	 * @param files
+	 *            number of files directly inside the directory
+	 * @param bytes
+	 *            number of bytes of files directly inside the directory
+	 * @param subdirectories
+	 *            subdirectories directly inside the directory
+	 */
+	public void update(Path directory, FileTime modified, long scanned, long files, long bytes,
+			Collection<Path> subdirectories) {
+		String[] names = new String[subdirectories.size()];
+		int index = 0;
+
+		for (Path subdirectory : subdirectories) {
+			names[index++] = subdirectory.getFileName().toString();
+		}
+
+		Path key = key(directory);
+		Entry old = entries.put(key, new Entry(modified.toMillis(), scanned, files, bytes, names));
+
+		if (old != null) {
+			HashSet<String> kept = new HashSet<>();
+
+			for (String name : names) {
+				kept.add(name);
+			}
+
+			for (String name : old.names) {
+				if (!kept.contains(name)) {
+					remove(key.resolve(name));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the cached totals for a directory and its subdirectories.
+	 *
+	 * @param directory
+	 *            absolute, normalized path of the directory
+	 */
+	private void remove(Path directory) {
+		Entry entry = entries.remove(directory);
+
+		if (entry != null) {
+			for (String name : entry.names) {
+				remove(directory.resolve(name));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of directories in this index.
+	 *
+	 * @return number of directories
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of directories whose cached totals were reused.
+	 *
+	 * @return number of cache hits
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of directories that had to be scanned.
+	 *
+	 * @return number of cache misses
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Removes every directory from this index.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Saves this index to a file. The index is written to a temporary file
+	 * first and then moved into place, so an interrupted save does not
+	 * corrupt an existing index file.
+	 *
+	 * @param file
+	 *            file to save to
+	 * @throws IOException
+	 *             if unable to write the file
+	 */
+	public void save(Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		// copy first so the count matches even if updated while saving
+		List<Map.Entry<Path, Entry>> copy = new ArrayList<>(entries.entrySet());
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(copy.size());
+
+			for (Map.Entry<Path, Entry> pair : copy) {
+				Entry entry = pair.getValue();
+
+				out.writeUTF(pair.getKey().toString());
+				out.writeLong(entry.modified);
+				out.writeLong(entry.scanned);
+				out.writeLong(entry.files);
+				out.writeLong(entry.bytes);
+				out.writeInt(entry.names.length);
+
+				for (String name : entry.names) {
+					out.writeUTF(name);
+				}
+			}
+		}
+
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		logger.debug("Saved {} directories to {}", copy.size(), file);
+	}
+
+	/**
+	 * Loads an index previously saved to a file. Returns an empty index if the
+	 * file does not exist or cannot be read.
+	 *
+	 * @param file
+	 *            file to load from
+	 * @return loaded index
+	 */
+	public static DirectoryIndex load(Path file) {
+		DirectoryIndex index = new DirectoryIndex();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a directory index file.");
+			}
+
+			int size = in.readInt();
+
+			for (int i = 0; i < size; i++) {
+				Path directory = Paths.get(in.readUTF());
+				long modified = in.readLong();
+				long scanned = in.readLong();
+				long files = in.readLong();
+				long bytes = in.readLong();
+				String[] names = new String[in.readInt()];
+
+				for (int j = 0; j < names.length; j++) {
+					names[j] = in.readUTF();
+				}
+
+				index.entries.put(directory, new Entry(modified, scanned, files, bytes, names));
+			}
+
+			logger.debug("Loaded {} directories from {}", index.size(), file);
+		}
+		catch (NoSuchFileException e) {
+			logger.debug("No directory index found at {}", file);
+		}
+		catch (IOException | RuntimeException e) {
+			logger.warn("Unable to load directory index from {}", file);
+			logger.catching(Level.DEBUG, e);
+			index.clear();
+		}
+
+		return index;
+	}
+
+	/**
+	 * Demonstrates how much faster a rescan is with an index, by calculating
+	 * the size of a directory twice and saving the index in between.
+	 *
+	 * @param args
+	 *            unused
+	 * @throws IOException
+	 *             if unable to save the index
+	 */
+	public static void main(String[] args) throws IOException {
+		// TODO Change this to a large directory on your system!
+		Path directory = Paths.get(".").toAbsolutePath().normalize();
+		Path file = Paths.get(System.getProperty("java.io.tmpdir"), "directory.index");
+
+		for (int i = 1; i <= 2; i++) {
+			DirectoryIndex index = DirectoryIndex.load(file);
+			long start = System.nanoTime();
+
+			MultithreadedDirectorySizeCalculator demo = new MultithreadedDirectorySizeCalculator(WorkQueue.DEFAULT,
+					BoundedWorkQueue.UNBOUNDED, index);
+			demo.addDirectory(directory);
+
+			System.out.printf("Run %d: %d files, %d bytes in %.2fms (%d cached, %d scanned)%n", i, demo.files(),
+					demo.bytes(), (System.nanoTime() - start) / 1e6, index.hits(), index.misses());
+
+			demo.shutdown();
+			index.save(file);
+		}
+	}
+
+	/**
+	 * Returns the path used to look up a directory.
+	 *
+	 * @param directory
+	 *            directory to look up
+	 * @return absolute, normalized path of the directory
+	 */
+	private static Path key(Path directory) {
+		return directory.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Cached totals for a single directory.
+	 */
+	public static class Entry {
+
+		/** Last modified time of the directory, in milliseconds. */
+		private final long modified;
+
+		/** When the directory was scanned, in milliseconds. */
+		private final long scanned;
+
+		/** Number of files directly inside the directory. */
+		private final long files;
+
+		/** Number of bytes of files directly inside the directory. */
+		private final long bytes;
+
+		/** Names of the subdirectories directly inside the directory. */
+		private final String[] names;
+
+		/**
+		 * Initializes the cached totals for a directory.
+		 *
+		 * @param modified
+		 *            last modified time of the directory, in milliseconds
+		 * @param scanned
+		 *            when the directory was scanned, in milliseconds
+		 * @param files
+		 *            number of files directly inside the directory
+		 * @param bytes
+		 *            number of bytes of files directly inside the directory
+		 * @param names
+		 *            names of the subdirectories
+		 */
+		private Entry(long modified, long scanned, long files, long bytes, String[] names) {
+			this.modified = modified;
+			this.scanned = scanned;
+			this.files = files;
+			this.bytes = bytes;
+			this.names = names;
+		}
+
+		/**
+		 * Returns the number of files directly inside the directory.
+		 *
+		 * @return number of files
+		 */
+		public long files() {
+			return files;
+		}
+
+		/**
+		 * Returns the number of bytes of files directly inside the directory.
+		 *
+		 * @return number of bytes
+		 */
+		public long bytes() {
+			return bytes;
+		}
+
+		/**
+		 * Returns the subdirectories directly inside the directory.
+		 *
+		 * @param directory
+		 *            path of the directory these totals are for
+		 * @return subdirectories of the directory
+		 */
+		public List<Path> subdirectories(Path directory) {
+			List<Path> subdirectories = new ArrayList<>(names.length);
+
+			for (String name : names) {
+				subdirectories.add(directory.resolve(name));
+			}
+
+			return subdirectories;
+		}
+	}
+}
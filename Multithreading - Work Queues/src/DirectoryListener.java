@@ -0,0 +1,39 @@
+import java.nio.file.Path;
+
+/**
+ * Listens for each directory as the directory size calculators finish it, so
+ * results can be shown or combined while the rest of the scan continues.
+ *
+ * The listener is called by the thread that scanned the directory (a worker
+ * thread for {@link MultithreadedDirectorySizeCalculator}), so it must be
+ * thread-safe when used with a multithreaded calculator. Since the scan waits
+ * for the listener to return, a slow listener slows down the scan instead of
+ * letting results pile up in memory. A listener that hands results off to
+ * another thread should use a bounded queue (for example, an
+ * {@link java.util.concurrent.ArrayBlockingQueue} and its {@code put} method)
+ * to keep this behavior. Time spent blocked counts against the timeout of a
+ * multithreaded calculator, so leave its timeout unset (the default) if the
+ * listener may block for a long time.
+ *
+ * @see DirectorySizeCalculator#setListener(DirectoryListener)
+ * @see MultithreadedDirectorySizeCalculator#setListener(DirectoryListener)
+ * @see MultithreadedDirectorySizeCalculator#setTimeout(long,
+ *      java.util.concurrent.TimeUnit)
+ */
+@FunctionalInterface
+public interface DirectoryListener {
+
+	/**
+	 * Called once a directory has been scanned. The totals only include the
+	 * files directly inside the directory, not its subdirectories, which are
+	 * reported separately (and possibly before or after this directory).
+	 *
+	 * @param directory
+	 *            directory that was scanned
+	 * @param files
+	 *            number of files directly inside the directory
+	 * @param bytes
+	 *            number of bytes of files directly inside the directory
+	 */
+	public void scanned(Path directory, long files, long bytes);
+}
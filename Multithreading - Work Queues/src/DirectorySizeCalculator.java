@@ -1,8 +1,12 @@
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -21,6 +25,10 @@ public class DirectorySizeCalculator {
 
 	private static final Logger logger = LogManager.getLogger();
 
+	private final DirectoryIndex index;
+	private DirectoryListener listener;
+	private ScanFilter filter;
+
 	private long files;
 	private long bytes;
 
@@ -28,10 +36,55 @@ public class DirectorySizeCalculator {
 	 * Initializes the number of files found and total bytes found to 0.
 	 */
 	public DirectorySizeCalculator() {
+		this(null);
+	}
+
+	/**
+	 * Initializes the number of files found and total bytes found to 0, using
+	 * the specified index to skip directories that have not been modified
+	 * since they were last scanned. The totals are then approximate, since
+	 * the cached totals of a directory do not change when a file in it is
+	 * modified in place.
+	 *
+	 * @param index
+	 *            index of directory totals to use and update, or null
+	 *
+	 * @see DirectoryIndex
+	 */
+	public DirectorySizeCalculator(DirectoryIndex index) {
+		this.index = index;
 		this.files = 0;
 		this.bytes = 0;
 	}
 
+	/**
+	 * Sets the listener to call as each directory is scanned, or null to stop
+	 * reporting directories.
+	 *
+	 * @param listener
+	 *            listener to call for each directory, or null
+	 *
+	 * @see DirectoryListener
+	 */
+	public void setListener(DirectoryListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the filter that decides which files and subdirectories to include,
+	 * or null to include everything. Excluded subdirectories are not scanned
+	 * at all. The index (if any) is not used while a filter is set, since the
+	 * cached totals include every file.
+	 *
+	 * @param filter
+	 *            filter to use, or null
+	 *
+	 * @see ScanFilter
+	 */
+	public void setFilter(ScanFilter filter) {
+		this.filter = filter;
+	}
+
 	/**
 	 * Resets the counters, allowing this object to be easily reused if desired.
 	 */
@@ -70,13 +123,18 @@ public class DirectorySizeCalculator {
 	 */
 	public void addPath(Path path) {
 		try {
-			if (Files.isDirectory(path)) {
-				processDirectory(path);
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+			if (attributes.isDirectory()) {
+				processDirectory(path, attributes.lastModifiedTime(), path, 0);
 			}
-			else if (Files.exists(path)) {
-				updateCounters(1, Files.size(path));
+			else if (filter == null || filter.accept(path.getFileName(), attributes)) {
+				updateCounters(1, attributes.size());
 			}
 		}
+		catch (NoSuchFileException e) {
+			logger.debug("Skipping missing path {}", path);
+		}
 		catch (IOException e) {
 			logger.warn("Unable to calculate size for {}", path);
 			logger.catching(Level.DEBUG, e);
@@ -85,25 +143,82 @@ public class DirectorySizeCalculator {
 
 	/**
 	 * Handles per-directory parsing. If a subdirectory is encountered, a
-	 * recursive call will handle that subdirectory.
+	 * recursive call will handle that subdirectory. If the directory has not
+	 * been modified since it was indexed, the cached totals are used instead
+	 * of listing the directory.
+	 *
+	 * The attributes of each entry are read once, instead of checking whether
+	 * it is a directory and then its size separately, which halves the number
+	 * of file system calls per file.
+	 *
+	 * @param directory
+	 *            directory to process
+	 * @param modified
+	 *            last modified time of the directory if already known, or null
+	 * @param root
+	 *            directory originally added, used to filter by relative path
+	 * @param depth
+	 *            depth of this directory below the root
 	 */
-	private void processDirectory(Path directory) {
+	private void processDirectory(Path directory, FileTime modified, Path root, int depth) {
 		assert Files.isDirectory(directory);
 
 		logger.debug("Processing {}", directory);
 
-		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
-			for (Path path : stream) {
-				// looks familiar, right? we could call addDirectory(path)
-				// but lets keep this as-is because it will be helpful for
-				// multithreading
-				if (Files.isDirectory(path)) {
-					processDirectory(path);
+		long scanned = System.currentTimeMillis();
+		long files = 0;
+		long bytes = 0;
+		ArrayList<Path> subdirectories = new ArrayList<>();
+
+		// cached totals would include files the filter excludes
+		ScanFilter filter = this.filter;
+		DirectoryIndex index = filter == null ? this.index : null;
+
+		try {
+			if (index != null && modified == null) {
+				modified = Files.getLastModifiedTime(directory);
+			}
+
+			DirectoryIndex.Entry cached = index == null ? null : index.lookup(directory, modified);
+
+			if (cached != null) {
+				updateCounters(cached.files(), cached.bytes());
+				notifyListener(directory, cached.files(), cached.bytes());
+
+				// subdirectories may have changed even if this one did not
+				for (Path path : cached.subdirectories(directory)) {
+					processDirectory(path, null, root, depth + 1);
 				}
-				else {
-					updateCounters(1, Files.size(path));
+
+				return;
+			}
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path path : stream) {
+					// looks familiar, right? we could call addDirectory(path)
+					// but lets keep this as-is because it will be helpful for
+					// multithreading
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+					if (attributes.isDirectory()) {
+						if (filter == null || filter.descend(root.relativize(path), depth + 1)) {
+							subdirectories.add(path);
+							processDirectory(path, attributes.lastModifiedTime(), root, depth + 1);
+						}
+					}
+					else if (filter == null || filter.accept(root.relativize(path), attributes)) {
+						files += 1;
+						bytes += attributes.size();
+					}
 				}
 			}
+
+			updateCounters(files, bytes);
+			notifyListener(directory, files, bytes);
+
+			if (index != null) {
+				index.update(directory, modified, scanned, files, bytes, subdirectories);
+			}
 		}
 		catch (IOException e) {
 			logger.warn("Unable to parse {}", directory);
@@ -127,6 +242,21 @@ public class DirectorySizeCalculator {
 		logger.debug("Counters are {} files and {} bytes", this.files, this.bytes);
 	}
 
+	/**
+	 * Reports a scanned directory to the listener, if there is one.
+	 *
+	 * @param directory
+	 * @param files
+	 * @param bytes
+	 */
+	private void notifyListener(Path directory, long files, long bytes) {
+		DirectoryListener listener = this.listener;
+
+		if (listener != null) {
+			listener.scanned(directory, files, bytes);
+		}
+	}
+
 	/**
 	 * Runs a simple example to demonstrate this class. Try changing the path to
 	 * your root directory, and see how long it takes!
@@ -0,0 +1,516 @@
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the total number of files and bytes in each directory and all of its
+ * subdirectories, like the output of {@code du}, as a directory size
+ * calculator scans them. Each directory reports its own totals when it is
+ * scanned, and once it and all of its subdirectories are done, its totals are
+ * added to its parent. This way, the totals are rolled up during the scan
+ * itself instead of in a second pass.
+ *
+ * To fit millions of directories in memory, directories are stored as
+ * numbered entries in arrays instead of objects or map entries keyed by path.
+ * The subdirectories of each directory are added at once, so they are
+ * numbered consecutively, and only the name (not the full path) of each
+ * directory is kept. The arrays are allocated in pages, so they never have to
+ * be copied to grow. Each directory uses about 40 bytes plus its name.
+ *
+ * This class is thread-safe, except for {@link #clear()}, which must not be
+ * called while a scan is running.
+ *
+ * @see MultithreadedDirectorySizeCalculator#setTree(DirectoryTree)
+ */
+public class DirectoryTree {
+
+	/** Each page holds 2^12 (4096) directories. */
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	/** Pages of directories. Only replaced while synchronized. */
+	private volatile Page[] pages;
+
+	/** Number of directories added. Only accessed while synchronized. */
+	private int size;
+
+	/** Directories added without a parent. Only accessed while synchronized. */
+	private final ArrayList<Integer> roots;
+
+	/**
+	 * Initializes an empty tree.
+	 */
+	public DirectoryTree() {
+		this.pages = new Page[0];
+		this.size = 0;
+		this.roots = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a directory without a parent, for example a directory passed to
+	 * {@link MultithreadedDirectorySizeCalculator#addDirectory(Path)}.
+	 *
+	 * @param directory
+	 *            directory to add
+	 * @return number of the added directory
+	 */
+	public synchronized int addRoot(Path directory) {
+		int id = allocate(1);
+		Page page = page(id);
+
+		page.parent[id & PAGE_MASK] = -1;
+		page.names[id & PAGE_MASK] = directory.toString();
+		roots.add(id);
+
+		return id;
+	}
+
+	/**
+	 * Adds the subdirectories of a directory. Must be called at most once per
+	 * directory, before that directory is completed.
+	 *
+	 * @param parent
+	 *            number of the parent directory
+	 * @param names
+	 *            names of the subdirectories
+	 * @return number of the first subdirectory; the rest are numbered
+	 *         consecutively in the same order as the names
+	 */
+	public synchronized int addChildren(int parent, List<String> names) {
+		Page parentPage = page(parent);
+
+		if (parentPage.count[parent & PAGE_MASK] != 0) {
+			throw new IllegalStateException("Subdirectories already added for " + path(parent));
+		}
+
+		int first = allocate(names.size());
+
+		for (int i = 0; i < names.size(); i++) {
+			int id = first + i;
+			Page page = page(id);
+
+			page.parent[id & PAGE_MASK] = parent;
+			page.names[id & PAGE_MASK] = names.get(i);
+		}
+
+		parentPage.first[parent & PAGE_MASK] = first;
+		parentPage.count[parent & PAGE_MASK] = names.size();
+
+		// parent is not done until each subdirectory is done
+		parentPage.remaining.addAndGet(parent & PAGE_MASK, names.size());
+		return first;
+	}
+
+	/**
+	 * Reports the files and bytes directly inside a directory once it has
+	 * been scanned. Must be called exactly once per directory, even if the
+	 * directory could not be scanned. If the subdirectories of the directory
+	 * are already done, the totals are rolled up into the parent directory
+	 * (and possibly its parent, and so on).
+	 *
+	 * @param id
+	 *            number of the directory
+	 * @param files
+	 *            number of files directly inside the directory
+	 * @param bytes
+	 *            number of bytes of files directly inside the directory
+	 */
+	public void complete(int id, long files, long bytes) {
+		add(id, files, bytes);
+
+		int node = id;
+
+		// whichever thread finishes a directory last rolls it up
+		while (page(node).remaining.decrementAndGet(node & PAGE_MASK) == 0) {
+			int parent = page(node).parent[node & PAGE_MASK];
+
+			if (parent < 0) {
+				return;
+			}
+
+			add(parent, files(node), bytes(node));
+			node = parent;
+		}
+	}
+
+	/**
+	 * Adds to the totals of a directory.
+	 *
+	 * @param id
+	 * @param files
+	 * @param bytes
+	 */
+	private void add(int id, long files, long bytes) {
+		Page page = page(id);
+		page.files.addAndGet(id & PAGE_MASK, files);
+		page.bytes.addAndGet(id & PAGE_MASK, bytes);
+	}
+
+	/**
+	 * Numbers the specified number of new directories, allocating new pages
+	 * if necessary. Must be called while synchronized.
+	 *
+	 * @param count
+	 *            number of directories to add
+	 * @return number of the first new directory
+	 */
+	private int allocate(int count) {
+		int first = size;
+		int needed = (first + count + PAGE_MASK) >>> PAGE_BITS;
+		Page[] current = pages;
+
+		if (needed > current.length) {
+			current = Arrays.copyOf(current, Math.max(needed, current.length * 2));
+		}
+
+		// only the pages themselves are allocated as needed
+		for (int i = first >>> PAGE_BITS; i < needed; i++) {
+			if (current[i] == null) {
+				current[i] = new Page();
+			}
+		}
+
+		pages = current;
+
+		size += count;
+		return first;
+	}
+
+	/**
+	 * Returns the page containing a directory.
+	 *
+	 * @param id
+	 *            number of the directory
+	 * @return page containing the directory
+	 */
+	private Page page(int id) {
+		return pages[id >>> PAGE_BITS];
+	}
+
+	/**
+	 * Returns the path of a directory, built from the names of it and its
+	 * parent directories.
+	 *
+	 * @param id
+	 *            number of the directory
+	 * @return path of the directory
+	 */
+	private Path path(int id) {
+		ArrayList<String> names = new ArrayList<>();
+		int node = id;
+
+		while (node >= 0) {
+			names.add(page(node).names[node & PAGE_MASK]);
+			node = page(node).parent[node & PAGE_MASK];
+		}
+
+		Path path = Paths.get(names.get(names.size() - 1));
+
+		for (int i = names.size() - 2; i >= 0; i--) {
+			path = path.resolve(names.get(i));
+		}
+
+		return path;
+	}
+
+	/**
+	 * Returns the total number of files in a directory, including its
+	 * subdirectories that are done so far.
+	 *
+	 * @param id
+	 * @return number of files
+	 */
+	private long files(int id) {
+		return page(id).files.get(id & PAGE_MASK);
+	}
+
+	/**
+	 * Returns the total number of bytes in a directory, including its
+	 * subdirectories that are done so far.
+	 *
+	 * @param id
+	 * @return number of bytes
+	 */
+	private long bytes(int id) {
+		return page(id).bytes.get(id & PAGE_MASK);
+	}
+
+	/**
+	 * Returns the number of directories in this tree.
+	 *
+	 * @return number of directories
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the directories added without a parent.
+	 *
+	 * @return root directories
+	 */
+	public synchronized List<Node> roots() {
+		ArrayList<Node> nodes = new ArrayList<>(roots.size());
+
+		for (int id : roots) {
+			nodes.add(new Node(id));
+		}
+
+		return nodes;
+	}
+
+	/**
+	 * Returns the directories with the most bytes, including their
+	 * subdirectories, largest first. Only directories that are done are
+	 * included. Since the totals of a directory include its subdirectories,
+	 * the largest directories usually include the root directories.
+	 *
+	 * @param n
+	 *            number of directories to return
+	 * @return up to {@code n} largest directories
+	 */
+	public List<Node> largest(int n) {
+		if (n <= 0) {
+			return Collections.emptyList();
+		}
+
+		int size = size();
+
+		// keeps the n largest seen so far, smallest on top
+		Comparator<Integer> order = Comparator.comparingLong(this::bytes);
+		PriorityQueue<Integer> heap = new PriorityQueue<>(n + 1, order);
+
+		for (int id = 0; id < size; id++) {
+			if (page(id).remaining.get(id & PAGE_MASK) != 0) {
+				continue;
+			}
+
+			if (heap.size() < n) {
+				heap.add(id);
+			}
+			else if (bytes(id) > bytes(heap.peek())) {
+				heap.poll();
+				heap.add(id);
+			}
+		}
+
+		ArrayList<Node> largest = new ArrayList<>(heap.size());
+
+		while (!heap.isEmpty()) {
+			largest.add(new Node(heap.poll()));
+		}
+
+		Collections.reverse(largest);
+		return largest;
+	}
+
+	/**
+	 * Prints the total bytes of each directory up to the specified depth, like
+	 * {@code du --max-depth}, with each subdirectory listed before its parent.
+	 *
+	 * @param out
+	 *            where to print
+	 * @param depth
+	 *            how many levels of subdirectories to print (0 for only the
+	 *            root directories)
+	 */
+	public void print(PrintStream out, int depth) {
+		for (Node root : roots()) {
+			print(out, root, depth);
+		}
+	}
+
+	/**
+	 * Prints a directory and its subdirectories up to the specified depth.
+	 *
+	 * @param out
+	 * @param node
+	 * @param depth
+	 */
+	private void print(PrintStream out, Node node, int depth) {
+		if (depth > 0) {
+			for (Node child : node.children()) {
+				print(out, child, depth - 1);
+			}
+		}
+
+		out.println(node);
+	}
+
+	/**
+	 * Demonstrates this class by printing the size of each subdirectory of a
+	 * directory, and the largest directories found.
+	 *
+	 * @param args
+	 *            unused
+	 */
+	public static void main(String[] args) {
+		// TODO Change this to a large directory on your system!
+		Path directory = Paths.get(".").toAbsolutePath().normalize();
+		DirectoryTree tree = new DirectoryTree();
+
+		MultithreadedDirectorySizeCalculator demo = new MultithreadedDirectorySizeCalculator();
+		demo.setTree(tree);
+		demo.addDirectory(directory);
+		demo.finish();
+		demo.shutdown();
+
+		tree.print(System.out, 1);
+		System.out.println();
+
+		System.out.println("Largest directories:");
+		for (Node node : tree.largest(5)) {
+			System.out.println(node);
+		}
+	}
+
+	/**
+	 * Removes every directory from this tree. Must not be called while a scan
+	 * that uses this tree is running.
+	 */
+	public synchronized void clear() {
+		pages = new Page[0];
+		size = 0;
+		roots.clear();
+	}
+
+	/**
+	 * A directory in the tree. Nodes are only created when returned from a
+	 * query, and reflect the latest totals of the directory.
+	 */
+	public class Node {
+
+		/** Number of the directory. */
+		private final int id;
+
+		/**
+		 * Initializes a node for the specified directory.
+		 *
+		 * @param id
+		 *            number of the directory
+		 */
+		private Node(int id) {
+			this.id = id;
+		}
+
+		/**
+		 * Returns the path of this directory.
+		 *
+		 * @return path of the directory
+		 */
+		public Path path() {
+			return DirectoryTree.this.path(id);
+		}
+
+		/**
+		 * Returns the number of files in this directory and its
+		 * subdirectories.
+		 *
+		 * @return number of files
+		 */
+		public long files() {
+			return DirectoryTree.this.files(id);
+		}
+
+		/**
+		 * Returns the number of bytes in this directory and its
+		 * subdirectories.
+		 *
+		 * @return number of bytes
+		 */
+		public long bytes() {
+			return DirectoryTree.this.bytes(id);
+		}
+
+		/**
+		 * Returns whether this directory and all of its subdirectories are
+		 * done, and so whether its totals are final.
+		 *
+		 * @return true if the totals are final
+		 */
+		public boolean isComplete() {
+			return page(id).remaining.get(id & PAGE_MASK) == 0;
+		}
+
+		/**
+		 * Returns the subdirectories of this directory found so far.
+		 *
+		 * @return subdirectories
+		 */
+		public List<Node> children() {
+			int first;
+			int count;
+
+			synchronized (DirectoryTree.this) {
+				first = page(id).first[id & PAGE_MASK];
+				count = page(id).count[id & PAGE_MASK];
+			}
+
+			ArrayList<Node> children = new ArrayList<>(count);
+
+			for (int i = 0; i < count; i++) {
+				children.add(new Node(first + i));
+			}
+
+			return children;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%12d\t%s", bytes(), path());
+		}
+	}
+
+	/**
+	 * A fixed-size block of directories.
+	 */
+	private static class Page {
+
+		/** Number of the parent directory, or -1 for a root directory. */
+		private final int[] parent;
+
+		/** Number of the first subdirectory. */
+		private final int[] first;
+
+		/** Number of subdirectories. */
+		private final int[] count;
+
+		/** Name of the directory, or the full path for root directories. */
+		private final String[] names;
+
+		/** Number of subdirectories (plus itself) not done yet. */
+		private final AtomicIntegerArray remaining;
+
+		/** Total files, including the subdirectories done so far. */
+		private final AtomicLongArray files;
+
+		/** Total bytes, including the subdirectories done so far. */
+		private final AtomicLongArray bytes;
+
+		/**
+		 * Initializes an empty page.
+		 */
+		private Page() {
+			this.parent = new int[PAGE_SIZE];
+			this.first = new int[PAGE_SIZE];
+			this.count = new int[PAGE_SIZE];
+			this.names = new String[PAGE_SIZE];
+			this.files = new AtomicLongArray(PAGE_SIZE);
+			this.bytes = new AtomicLongArray(PAGE_SIZE);
+
+			// each directory starts out waiting on itself
+			int[] ones = new int[PAGE_SIZE];
+			Arrays.fill(ones, 1);
+			this.remaining = new AtomicIntegerArray(ones);
+		}
+	}
+}
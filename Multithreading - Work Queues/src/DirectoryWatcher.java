@@ -0,0 +1,522 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the total number of files and bytes in one or more directories (and
+ * their subdirectories) up to date as they change, without rescanning them.
+ * Each directory is scanned once using a work queue and registered with a
+ * {@link WatchService}, and the totals are adjusted as changes are reported.
+ * The totals of each watched directory are kept separately, so asking for
+ * them does not need to walk the directory.
+ *
+ * Whenever a change is reported, the attributes of the changed entry are read
+ * again rather than trusting the kind of change, so changes that are reported
+ * late, more than once, or out of order do not throw off the totals. If
+ * changes to a directory were lost (the watch service overflowed), only that
+ * directory is listed again; any new subdirectories found are scanned, and any
+ * missing subdirectories are removed.
+ *
+ * Watched directories may not overlap, since the watch service only reports
+ * each change once no matter how many watched directories it is inside. A
+ * directory inside (or containing) one already being watched is skipped.
+ * Likewise, a subdirectory reached more than once (through a link to a
+ * directory that is already being watched) is only counted the first time.
+ *
+ * Changes made while a directory is being scanned for the first time may not
+ * be reflected until the scan finishes. Directories that cannot be registered
+ * (for example, once the limit on the number of watches is reached) are still
+ * counted, but their totals are not kept up to date.
+ *
+ * @see MultithreadedDirectorySizeCalculator
+ */
+public class DirectoryWatcher {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final WorkQueue workers;
+	private final WatchService service;
+	private final Thread watcher;
+
+	/** Totals for each watched directory. */
+	private final Map<Path, Totals> roots;
+
+	/** State of each directory found, by path and by watch key. */
+	private final Map<Path, DirectoryState> directories;
+	private final Map<WatchKey, DirectoryState> keys;
+
+	/**
+	 * Initializes a watcher with a work queue with {@link WorkQueue#DEFAULT}
+	 * threads for scanning directories.
+	 *
+	 * @throws IOException
+	 *             if unable to create a watch service
+	 */
+	public DirectoryWatcher() throws IOException {
+		this(WorkQueue.DEFAULT);
+	}
+
+	/**
+	 * Initializes a watcher with a work queue with the specified number of
+	 * threads for scanning directories.
+	 *
+	 * @param threads
+	 *            number of worker threads to use
+	 * @throws IOException
+	 *             if unable to create a watch service
+	 */
+	public DirectoryWatcher(int threads) throws IOException {
+		this.workers = new WorkQueue(threads);
+		this.service = FileSystems.getDefault().newWatchService();
+
+		this.roots = new ConcurrentHashMap<>();
+		this.directories = new ConcurrentHashMap<>();
+		this.keys = new ConcurrentHashMap<>();
+
+		this.watcher = new Thread(this::watch, "DirectoryWatcher");
+		this.watcher.setDaemon(true);
+		this.watcher.start();
+	}
+
+	/**
+	 * Starts watching the specified directory (and its subdirectories). Does
+	 * not wait for the directory to be scanned. Skips the directory if it is
+	 * inside or contains a directory already being watched (after following
+	 * any links), in which case its totals are not available.
+	 *
+	 * @param directory
+	 *            directory to watch
+	 *
+	 * @see #finish()
+	 */
+	public void addDirectory(Path directory) {
+		Path root = directory.toAbsolutePath().normalize();
+
+		if (!Files.isDirectory(root)) {
+			logger.warn("Skipping {}, which is not a directory", directory);
+			return;
+		}
+
+		Totals totals;
+
+		try {
+			// the same directory has the same watch key no matter how it is
+			// reached, so compare where the directories really are
+			totals = new Totals(root.toRealPath());
+		}
+		catch (IOException e) {
+			logger.warn("Unable to watch {}", directory);
+			logger.catching(Level.DEBUG, e);
+			return;
+		}
+
+		// checked and added together so overlapping directories added at the
+		// same time cannot both be watched
+		synchronized (roots) {
+			if (roots.containsKey(root)) {
+				logger.debug("Already watching {}", root);
+				return;
+			}
+
+			for (Map.Entry<Path, Totals> entry : roots.entrySet()) {
+				Path other = entry.getValue().real;
+
+				if (totals.real.startsWith(other) || other.startsWith(totals.real)) {
+					logger.warn("Skipping {}, which overlaps {} already being watched", directory, entry.getKey());
+					return;
+				}
+			}
+
+			roots.put(root, totals);
+		}
+
+		DirectoryState state = new DirectoryState(root, totals);
+		directories.put(root, state);
+		workers.execute(new ScanTask(state));
+	}
+
+	/**
+	 * Waits until every directory found so far has been scanned. The totals
+	 * continue to change afterwards as changes are reported.
+	 */
+	public void finish() {
+		workers.finish();
+	}
+
+	/**
+	 * Returns the number of files currently in a watched directory and its
+	 * subdirectories, without waiting or walking the directory.
+	 *
+	 * @param directory
+	 *            watched directory
+	 * @return number of files, or -1 if the directory is not being watched
+	 */
+	public long files(Path directory) {
+		Totals totals = roots.get(directory.toAbsolutePath().normalize());
+		return totals == null ? -1 : totals.files.sum();
+	}
+
+	/**
+	 * Returns the number of bytes currently in a watched directory and its
+	 * subdirectories, without waiting or walking the directory.
+	 *
+	 * @param directory
+	 *            watched directory
+	 * @return number of bytes, or -1 if the directory is not being watched
+	 */
+	public long bytes(Path directory) {
+		Totals totals = roots.get(directory.toAbsolutePath().normalize());
+		return totals == null ? -1 : totals.bytes.sum();
+	}
+
+	/**
+	 * Returns the number of directories currently being watched, including
+	 * subdirectories.
+	 *
+	 * @return number of directories
+	 */
+	public int size() {
+		return directories.size();
+	}
+
+	/**
+	 * Stops watching for changes. Will shutdown the work queue after all the
+	 * current pending work is finished.
+	 */
+	public void shutdown() {
+		logger.debug("Shutting down");
+
+		try {
+			service.close();
+		}
+		catch (IOException e) {
+			logger.catching(Level.DEBUG, e);
+		}
+
+		workers.shutdown();
+	}
+
+	/**
+	 * Handles changes reported by the watch service until it is closed.
+	 */
+	private void watch() {
+		while (true) {
+			WatchKey key;
+
+			try {
+				key = service.take();
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) {
+				logger.debug("Watcher stopped");
+				return;
+			}
+
+			DirectoryState state = keys.get(key);
+
+			// changes made before the directory was listed need no handling
+			if (state != null) {
+				synchronized (state) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (state.removed) {
+							break;
+						}
+
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							logger.debug("Changes lost for {}; listing again", state.directory);
+							rescan(state);
+						}
+						else {
+							refresh(state, event.context().toString());
+						}
+					}
+				}
+			}
+			else {
+				key.pollEvents();
+			}
+
+			if (!key.reset()) {
+				keys.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Updates the totals for a single entry in a directory, based on what is
+	 * there now. Schedules a scan for new subdirectories, and removes missing
+	 * subdirectories. Must be called while synchronized on the state.
+	 *
+	 * @param state
+	 *            directory containing the entry
+	 * @param name
+	 *            name of the entry
+	 */
+	private void refresh(DirectoryState state, String name) {
+		Path path = state.directory.resolve(name);
+		BasicFileAttributes attributes = null;
+
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		}
+		catch (NoSuchFileException e) {
+			// entry was removed
+		}
+		catch (IOException e) {
+			logger.warn("Unable to calculate size for {}", path);
+			logger.catching(Level.DEBUG, e);
+		}
+
+		Long old = state.files.get(name);
+
+		if (attributes != null && !attributes.isDirectory()) {
+			long size = attributes.size();
+
+			if (old == null) {
+				state.totals.files.increment();
+				state.totals.bytes.add(size);
+			}
+			else {
+				state.totals.bytes.add(size - old);
+			}
+
+			state.files.put(name, size);
+		}
+		else if (old != null) {
+			state.files.remove(name);
+			state.totals.files.decrement();
+			state.totals.bytes.add(-old);
+		}
+
+		boolean known = state.subdirectories.contains(name);
+
+		if (attributes != null && attributes.isDirectory()) {
+			if (!known) {
+				DirectoryState child = new DirectoryState(path, state.totals);
+				state.subdirectories.add(name);
+				directories.put(path, child);
+				workers.execute(new ScanTask(child));
+			}
+		}
+		else if (known) {
+			state.subdirectories.remove(name);
+			remove(path);
+		}
+	}
+
+	/**
+	 * Lists a directory again after changes to it were lost, refreshing every
+	 * entry that is there now or was there before. Must be called while
+	 * synchronized on the state.
+	 *
+	 * @param state
+	 *            directory to list
+	 */
+	private void rescan(DirectoryState state) {
+		HashSet<String> names = new HashSet<>(state.files.keySet());
+		names.addAll(state.subdirectories);
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(state.directory)) {
+			for (Path path : stream) {
+				names.add(path.getFileName().toString());
+			}
+		}
+		catch (IOException e) {
+			// refreshing each entry removes them if the directory is gone
+			logger.catching(Level.DEBUG, e);
+		}
+
+		for (String name : names) {
+			refresh(state, name);
+		}
+	}
+
+	/**
+	 * Stops watching a directory that no longer exists, and subtracts it and
+	 * its subdirectories from the totals.
+	 *
+	 * @param directory
+	 *            directory to remove
+	 */
+	private void remove(Path directory) {
+		DirectoryState state = directories.remove(directory);
+
+		if (state == null) {
+			return;
+		}
+
+		ArrayList<String> subdirectories;
+
+		synchronized (state) {
+			state.removed = true;
+
+			if (state.key != null) {
+				state.key.cancel();
+				keys.remove(state.key);
+			}
+
+			for (long size : state.files.values()) {
+				state.totals.files.decrement();
+				state.totals.bytes.add(-size);
+			}
+
+			subdirectories = new ArrayList<>(state.subdirectories);
+			state.files.clear();
+			state.subdirectories.clear();
+		}
+
+		for (String name : subdirectories) {
+			remove(directory.resolve(name));
+		}
+	}
+
+	/**
+	 * Registers a directory with the watch service and then lists it, so no
+	 * changes are missed in between.
+	 */
+	private class ScanTask implements Runnable {
+
+		private final DirectoryState state;
+
+		public ScanTask(DirectoryState state) {
+			this.state = state;
+		}
+
+		@Override
+		public void run() {
+			synchronized (state) {
+				// removed before it could be scanned
+				if (state.removed) {
+					return;
+				}
+
+				try {
+					WatchKey key = state.directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+					// the same directory always has the same key, no matter
+					// which link it was reached through
+					DirectoryState owner = keys.putIfAbsent(key, state);
+
+					if (owner != null) {
+						logger.debug("Skipping {}, which is already watched as {}", state.directory,
+								owner.directory);
+						state.removed = true;
+						directories.remove(state.directory, state);
+						return;
+					}
+
+					state.key = key;
+				}
+				catch (ClosedWatchServiceException e) {
+					return;
+				}
+				catch (IOException e) {
+					logger.warn("Unable to watch {}", state.directory);
+					logger.catching(Level.DEBUG, e);
+				}
+
+				rescan(state);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "ScanTask[" + state.directory + "]";
+		}
+	}
+
+	/**
+	 * Totals for a single watched directory, including its subdirectories.
+	 */
+	private static class Totals {
+		private final LongAdder files = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+
+		/** Watched directory after following any links. */
+		private final Path real;
+
+		public Totals(Path real) {
+			this.real = real;
+		}
+	}
+
+	/**
+	 * Files and subdirectories directly inside a single directory. Only
+	 * accessed while synchronized on this object.
+	 */
+	private static class DirectoryState {
+
+		private final Path directory;
+
+		/** Totals of the watched directory this directory is inside. */
+		private final Totals totals;
+
+		/** Size of each file, by name. */
+		private final HashMap<String, Long> files;
+
+		/** Names of the subdirectories. */
+		private final HashSet<String> subdirectories;
+
+		/** Key for this directory, or null if not registered (yet). */
+		private WatchKey key;
+
+		/** Whether this directory no longer exists. */
+		private boolean removed;
+
+		public DirectoryState(Path directory, Totals totals) {
+			this.directory = directory;
+			this.totals = totals;
+			this.files = new HashMap<>();
+			this.subdirectories = new HashSet<>();
+			this.key = null;
+			this.removed = false;
+		}
+	}
+
+	/**
+	 * Runs a simple example to demonstrate this class. Try creating and
+	 * deleting files in the current directory while this is running!
+	 *
+	 * @param args
+	 *            unused
+	 * @throws IOException
+	 *             if unable to create a watch service
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Path directory = Paths.get(".");
+
+		DirectoryWatcher demo = new DirectoryWatcher();
+		demo.addDirectory(directory);
+		demo.finish();
+
+		for (int i = 0; i < 30; i++) {
+			System.out.println(demo.files(directory) + " files, " + demo.bytes(directory) + " bytes");
+			TimeUnit.SECONDS.sleep(1);
+		}
+
+		demo.shutdown();
+	}
+}
@@ -0,0 +1,501 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Finds files with identical contents in one or more directories, and their
+ * subdirectories. Files are compared in three stages, from cheapest to most
+ * expensive, so most files are ruled out before being read in full:
+ *
+ * <ol>
+ * <li>Files are grouped by size while the directories are scanned.</li>
+ * <li>Files with the same size are grouped by a hash of their first and last
+ * {@value #BLOCK} bytes.</li>
+ * <li>Files with the same size and partial hash are grouped by a hash of
+ * their entire contents, read through a memory-mapped file.</li>
+ * </ol>
+ *
+ * Each stage runs as tasks on the same work queue, and a file moves on to the
+ * next stage as soon as a second file with the same size (or partial hash) is
+ * found, so hashing starts while the directories are still being scanned.
+ *
+ * Empty files and symbolic links are skipped, and hard links to a file that
+ * was already found are only counted once, since they do not use any extra
+ * space.
+ *
+ * @see DirectorySizeCalculator
+ */
+public class DuplicateFinder {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	/** Number of bytes to hash from the start and end of each file. */
+	public static final int BLOCK = 4096;
+
+	/** Most bytes of a file to map into memory at once. */
+	public static final int MAP_SIZE = 64 * 1024 * 1024;
+
+	/** Hash algorithm used to compare files. */
+	public static final String ALGORITHM = "SHA-256";
+
+	private final WorkQueue workers;
+
+	/** Files grouped by size, then partial hash, then full hash. */
+	private final Map<Key, List<Path>> sizes;
+	private final Map<Key, List<Path>> partials;
+	private final Map<Key, List<Path>> fulls;
+
+	/** Files found, used to skip hard links to the same file. */
+	private final Set<Object> seen;
+
+	/** Number of files found, partially hashed, and fully hashed. */
+	private final LongAdder found;
+	private final LongAdder partiallyHashed;
+	private final LongAdder fullyHashed;
+
+	/**
+	 * Initializes a duplicate finder with a work queue with
+	 * {@link WorkQueue#DEFAULT} threads.
+	 */
+	public DuplicateFinder() {
+		this(WorkQueue.DEFAULT);
+	}
+
+	/**
+	 * Initializes a duplicate finder with a work queue with the specified
+	 * number of threads.
+	 *
+	 * @param threads
+	 *            number of worker threads to use
+	 */
+	public DuplicateFinder(int threads) {
+		workers = new WorkQueue(threads);
+
+		sizes = new ConcurrentHashMap<>();
+		partials = new ConcurrentHashMap<>();
+		fulls = new ConcurrentHashMap<>();
+		seen = ConcurrentHashMap.newKeySet();
+
+		found = new LongAdder();
+		partiallyHashed = new LongAdder();
+		fullyHashed = new LongAdder();
+	}
+
+	/**
+	 * Adds the files in the specified directory (and its subdirectories) to
+	 * the files being compared. Does not wait for the directory to be scanned.
+	 *
+	 * @param directory
+	 *            directory to search
+	 */
+	public void addDirectory(Path directory) {
+		if (Files.isDirectory(directory)) {
+			workers.execute(new DirectoryTask(directory));
+		}
+		else {
+			logger.warn("Skipping {}, which is not a directory", directory);
+		}
+	}
+
+	/**
+	 * Waits for all of the pending work to finish, and then returns each group
+	 * of files with identical contents, with the largest files first.
+	 *
+	 * @return groups of duplicate files
+	 */
+	public List<List<Path>> duplicates() {
+		workers.finish();
+
+		ArrayList<Key> keys = new ArrayList<>();
+
+		for (Map.Entry<Key, List<Path>> entry : fulls.entrySet()) {
+			if (entry.getValue().size() > 1) {
+				keys.add(entry.getKey());
+			}
+		}
+
+		keys.sort(Comparator.comparingLong((Key key) -> key.size).reversed());
+
+		List<List<Path>> duplicates = new ArrayList<>(keys.size());
+
+		for (Key key : keys) {
+			List<Path> group = new ArrayList<>(fulls.get(key));
+			Collections.sort(group);
+			duplicates.add(group);
+		}
+
+		return duplicates;
+	}
+
+	/**
+	 * Returns the number of files found so far.
+	 *
+	 * @return number of files
+	 */
+	public long found() {
+		return found.sum();
+	}
+
+	/**
+	 * Returns the number of files with the same size as another file, which
+	 * had their first and last bytes hashed.
+	 *
+	 * @return number of partially hashed files
+	 */
+	public long partiallyHashed() {
+		return partiallyHashed.sum();
+	}
+
+	/**
+	 * Returns the number of files that had their entire contents hashed.
+	 *
+	 * @return number of fully hashed files
+	 */
+	public long fullyHashed() {
+		return fullyHashed.sum();
+	}
+
+	/**
+	 * Will shutdown the work queue after all the current pending work is
+	 * finished.
+	 */
+	public void shutdown() {
+		logger.debug("Shutting down");
+		workers.shutdown();
+	}
+
+	/**
+	 * Adds a file to a group, and returns the files that should move on to
+	 * the next stage. The first file in a group waits until a second file is
+	 * added, at which point both move on. Later files move on right away.
+	 *
+	 * @param groups
+	 *            groups to add to
+	 * @param key
+	 *            key of the group
+	 * @param file
+	 *            file to add
+	 * @return files that should move on to the next stage
+	 */
+	private static List<Path> group(Map<Key, List<Path>> groups, Key key, Path file) {
+		List<Path> group = groups.computeIfAbsent(key, k -> new ArrayList<>(2));
+
+		synchronized (group) {
+			group.add(file);
+
+			switch (group.size()) {
+				case 1:
+					return Collections.emptyList();
+				case 2:
+					return new ArrayList<>(group);
+				default:
+					return Collections.singletonList(file);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new message digest for hashing files.
+	 *
+	 * @return message digest
+	 */
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Hashes the first and last {@value #BLOCK} bytes of a file. If the file
+	 * is no larger than twice that, the entire file is hashed instead. These
+	 * are small reads, so they use regular reads instead of mapping the file.
+	 *
+	 * @param file
+	 *            file to hash
+	 * @param size
+	 *            size of the file
+	 * @return hash of the first and last bytes of the file
+	 * @throws IOException
+	 *             if unable to read the file
+	 */
+	private static byte[] hashEnds(Path file, long size) throws IOException {
+		MessageDigest digest = digest();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (size <= 2 * BLOCK) {
+				read(channel, digest, 0, (int) size);
+			}
+			else {
+				read(channel, digest, 0, BLOCK);
+				read(channel, digest, size - BLOCK, BLOCK);
+			}
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Reads part of a file into a message digest.
+	 *
+	 * @param channel
+	 * @param digest
+	 * @param position
+	 * @param length
+	 * @throws IOException
+	 */
+	private static void read(FileChannel channel, MessageDigest digest, long position, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("File changed size while being read.");
+			}
+		}
+
+		buffer.flip();
+		digest.update(buffer);
+	}
+
+	/**
+	 * Hashes the entire contents of a file, mapping up to {@value #MAP_SIZE}
+	 * bytes into memory at a time.
+	 *
+	 * @param file
+	 *            file to hash
+	 * @param size
+	 *            size of the file
+	 * @return hash of the file
+	 * @throws IOException
+	 *             if unable to read the file
+	 */
+	private static byte[] hashAll(Path file, long size) throws IOException {
+		MessageDigest digest = digest();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (long position = 0; position < size; position += MAP_SIZE) {
+				long length = Math.min(MAP_SIZE, size - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				digest.update(buffer);
+			}
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Lists a directory, adding a task for each subdirectory and grouping
+	 * each file by size.
+	 */
+	private class DirectoryTask implements Runnable {
+
+		private final Path directory;
+
+		public DirectoryTask(Path directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		public void run() {
+			ArrayList<Runnable> tasks = new ArrayList<>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path path : stream) {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+
+					if (attributes.isDirectory()) {
+						tasks.add(new DirectoryTask(path));
+					}
+					else if (attributes.isRegularFile() && attributes.size() > 0) {
+						Object fileKey = attributes.fileKey();
+
+						// skips extra hard links to the same file
+						if (fileKey != null && !seen.add(fileKey)) {
+							continue;
+						}
+
+						found.increment();
+						long size = attributes.size();
+
+						for (Path file : group(sizes, new Key(size, null), path)) {
+							tasks.add(new PartialTask(file, size));
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				logger.warn("Unable to parse {}", directory);
+				logger.catching(Level.DEBUG, e);
+			}
+
+			workers.executeAll(tasks);
+		}
+
+		@Override
+		public String toString() {
+			return "DirectoryTask[" + directory + "]";
+		}
+	}
+
+	/**
+	 * Hashes the first and last bytes of a file with the same size as another
+	 * file, and groups the file by that hash.
+	 */
+	private class PartialTask implements Runnable {
+
+		private final Path file;
+		private final long size;
+
+		public PartialTask(Path file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Key key = new Key(size, hashEnds(file, size));
+				partiallyHashed.increment();
+
+				if (size <= 2 * BLOCK) {
+					// already hashed the entire file
+					group(fulls, key, file);
+					return;
+				}
+
+				ArrayList<Runnable> tasks = new ArrayList<>();
+
+				for (Path next : group(partials, key, file)) {
+					tasks.add(new FullTask(next, size));
+				}
+
+				workers.executeAll(tasks);
+			}
+			catch (IOException e) {
+				logger.warn("Unable to hash {}", file);
+				logger.catching(Level.DEBUG, e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "PartialTask[" + file + "]";
+		}
+	}
+
+	/**
+	 * Hashes the entire contents of a file with the same size and partial hash
+	 * as another file, and groups the file by that hash.
+	 */
+	private class FullTask implements Runnable {
+
+		private final Path file;
+		private final long size;
+
+		public FullTask(Path file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Key key = new Key(size, hashAll(file, size));
+				fullyHashed.increment();
+				group(fulls, key, file);
+			}
+			catch (IOException e) {
+				logger.warn("Unable to hash {}", file);
+				logger.catching(Level.DEBUG, e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "FullTask[" + file + "]";
+		}
+	}
+
+	/**
+	 * Groups files by size and (optionally) hash.
+	 */
+	private static class Key {
+
+		private final long size;
+		private final byte[] hash;
+
+		public Key(long size, byte[] hash) {
+			this.size = size;
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+
+			Key key = (Key) other;
+			return size == key.size && Arrays.equals(hash, key.hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Long.hashCode(size) + Arrays.hashCode(hash);
+		}
+	}
+
+	/**
+	 * Runs a simple example to demonstrate this class. Try changing the path to
+	 * your home directory, and see how many duplicates you have!
+	 *
+	 * @param args
+	 *            unused
+	 */
+	public static void main(String[] args) {
+		DuplicateFinder demo = new DuplicateFinder();
+		demo.addDirectory(Paths.get("."));
+
+		List<List<Path>> duplicates = demo.duplicates();
+
+		for (List<Path> group : duplicates) {
+			System.out.println(group);
+		}
+
+		System.out.println();
+		System.out.println(duplicates.size() + " groups of duplicates");
+		System.out.println(demo.found() + " files found");
+		System.out.println(demo.partiallyHashed() + " files partially hashed");
+		System.out.println(demo.fullyHashed() + " files fully hashed");
+
+		demo.shutdown();
+	}
+}
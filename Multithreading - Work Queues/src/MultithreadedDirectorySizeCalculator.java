@@ -1,8 +1,18 @@
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -22,84 +32,256 @@ public class MultithreadedDirectorySizeCalculator {
 	private static final Logger logger = LogManager.getLogger();
 
 	private final WorkQueue minions;
-	private int pending;
+	private final DirectoryIndex index;
+	private volatile DirectoryListener listener;
+	private volatile DirectoryTree tree;
+	private volatile ScanFilter filter;
 
-	private long files;
-	private long bytes;
+	/*
+	 * Minions add to these without locking, and without contending with each
+	 * other much, since each thread mostly adds to its own cell. Reading the
+	 * totals is slower, but only happens once per scan (or once per poll).
+	 */
+	private final LongAdder files;
+	private final LongAdder bytes;
+
+	/** Directories given up on for running past the timeout or rejected. */
+	private final ConcurrentLinkedQueue<Path> incomplete;
 
 	/**
 	 * Initializes the number of files found and total bytes found to 0. Also
 	 * initializes a work queue with {@link WorkQueue#DEFAULT} threads.
 	 */
 	public MultithreadedDirectorySizeCalculator() {
-		minions = new WorkQueue();
-		pending = 0;
+		this(WorkQueue.DEFAULT, BoundedWorkQueue.UNBOUNDED);
+	}
+
+	/**
+	 * Initializes the number of files found and total bytes found to 0. Also
+	 * initializes a work queue with the specified number of threads that will
+	 * hold at most {@code capacity} waiting minions. When the work queue is
+	 * full, minions process subdirectories themselves instead of queueing
+	 * more work, which keeps memory usage flat for very large trees.
+	 *
+	 * @param threads
+	 *            number of worker threads to use
+	 * @param capacity
+	 *            maximum number of waiting minions or
+	 *            {@link BoundedWorkQueue#UNBOUNDED}
+	 */
+	public MultithreadedDirectorySizeCalculator(int threads, int capacity) {
+		this(threads, capacity, null);
+	}
+
+	/**
+	 * Initializes the number of files found and total bytes found to 0, using
+	 * the specified index to skip directories that have not been modified
+	 * since they were last scanned. The totals are then approximate, since
+	 * the cached totals of a directory do not change when a file in it is
+	 * modified in place. Also initializes a work queue with the specified
+	 * number of threads that will hold at most {@code capacity} waiting
+	 * minions.
+	 *
+	 * @param threads
+	 *            number of worker threads to use
+	 * @param capacity
+	 *            maximum number of waiting minions or
+	 *            {@link BoundedWorkQueue#UNBOUNDED}
+	 * @param index
+	 *            index of directory totals to use and update, or null
+	 *
+	 * @see DirectoryIndex
+	 */
+	public MultithreadedDirectorySizeCalculator(int threads, int capacity, DirectoryIndex index) {
+		this.index = index;
+
+		if (capacity == BoundedWorkQueue.UNBOUNDED) {
+			minions = new WorkQueue(threads);
+		}
+		else {
+			minions = new BoundedWorkQueue(threads, capacity);
+		}
+
+		files = new LongAdder();
+		bytes = new LongAdder();
+		incomplete = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Sets the maximum amount of time a minion may spend on a single directory
+	 * before it is considered stuck (for example, on a network mount that
+	 * stopped responding), or 0 for no limit. There is no limit by default. A
+	 * stuck minion is interrupted and its worker replaced, and its directory
+	 * is not counted; see {@link #incomplete()}. Subdirectories that a minion
+	 * scans itself because the work queue is full count against the timeout
+	 * of that minion, so use a generous timeout with a bounded work queue.
+	 *
+	 * @param timeout
+	 *            maximum amount of time a minion may spend, or 0 for no limit
+	 * @param unit
+	 *            time unit of the timeout
+	 *
+	 * @see WorkQueue#setTaskTimeout(long, TimeUnit)
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		minions.setTaskTimeout(timeout, unit);
+	}
 
-		files = 0;
-		bytes = 0;
+	/**
+	 * Sets the listener to call as each directory is scanned, or null to stop
+	 * reporting directories. The listener is called by the worker threads, so
+	 * it must be thread-safe.
+	 *
+	 * @param listener
+	 *            listener to call for each directory, or null
+	 *
+	 * @see DirectoryListener
+	 */
+	public void setListener(DirectoryListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the tree to build with the totals of each directory (and its
+	 * subdirectories) as directories are added, or null to stop building a
+	 * tree. Directories already being scanned keep using the tree that was set
+	 * when they were added.
+	 *
+	 * @param tree
+	 *            tree to add directories to, or null
+	 *
+	 * @see DirectoryTree
+	 */
+	public void setTree(DirectoryTree tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * Sets the filter that decides which files and subdirectories to include,
+	 * or null to include everything. Excluded subdirectories are never queued.
+	 * The index (if any) is not used while a filter is set, since the cached
+	 * totals include every file. Directories already being scanned keep using
+	 * the filter that was set when they were added.
+	 *
+	 * @param filter
+	 *            filter to use, or null
+	 *
+	 * @see ScanFilter
+	 */
+	public void setFilter(ScanFilter filter) {
+		this.filter = filter;
 	}
 
 	/**
 	 * Resets the counters, allowing this object to be easily reused if desired.
-	 * Note that we had to make this method synchronized in the multithreaded
-	 * version.
+	 * Note that we have to wait for the pending work to finish first in the
+	 * multithreaded version.
 	 */
-	public synchronized void reset() {
+	public void reset() {
 		finish();
-		bytes = 0;
-		files = 0;
+
+		bytes.reset();
+		files.reset();
+		incomplete.clear();
+
 		logger.debug("Counters reset");
 	}
 
 	/**
-	 * Returns the number of files found since the last reset. Note that we had
-	 * to make this method synchronized in the multithreaded version.
+	 * Returns the number of files found since the last reset. Note that we have
+	 * to wait for the pending work to finish first in the multithreaded
+	 * version.
 	 *
 	 * @return number of files
 	 */
-	public synchronized long files() {
+	public long files() {
 		logger.debug("Getting files");
 		finish();
-		return files;
+		return files.sum();
 	}
 
 	/**
-	 * Returns the number of bytes found since the last reset. Note that we had
-	 * to make this method synchronized in the multithreaded version.
+	 * Returns the number of bytes found since the last reset. Note that we have
+	 * to wait for the pending work to finish first in the multithreaded
+	 * version.
 	 *
 	 * @return number of bytes
 	 */
-	public synchronized long bytes() {
+	public long bytes() {
 		logger.debug("Getting bytes");
 		finish();
-		return bytes;
+		return bytes.sum();
+	}
+
+	/**
+	 * Returns the directories that were given up on for running past the
+	 * timeout, or that the work queue rejected (for example, after a call to
+	 * {@link WorkQueue#shutdownNow()}), since the last reset. The totals do not
+	 * include these directories, or any of their subdirectories that were not
+	 * already queued. Note that we have to wait for the pending work to finish
+	 * first.
+	 *
+	 * @return directories not completely scanned, or an empty list
+	 *
+	 * @see #setTimeout(long, TimeUnit)
+	 */
+	public List<Path> incomplete() {
+		finish();
+		return new ArrayList<>(incomplete);
+	}
+
+	/**
+	 * Returns whether every directory added since the last reset was
+	 * completely scanned (or taken from the index, whose totals may be stale).
+	 * Note that we have to wait for the pending work to finish first.
+	 *
+	 * @return true if no directory ran past the timeout or was rejected
+	 *
+	 * @see #incomplete()
+	 */
+	public boolean isComplete() {
+		finish();
+		return incomplete.isEmpty();
+	}
+
+	/**
+	 * Returns the progress made so far without waiting for the pending work to
+	 * finish, for example to show progress while a large directory is being
+	 * scanned. Does not block the minions. Each minion adds its totals once it
+	 * finishes a directory, so the totals only include directories that have
+	 * been completely scanned, and the file and byte counts may not be from
+	 * exactly the same moment.
+	 *
+	 * @return current progress
+	 */
+	public Snapshot snapshot() {
+		// read first, so a finished snapshot includes every minion's totals
+		int pending = minions.pending();
+		return new Snapshot(files.sum(), bytes.sum(), pending);
 	}
 
 	/**
 	 * Helper method, that helps a thread wait until all of the current work is
 	 * done. This is useful for resetting the counters or shutting down the work
-	 * queue.
+	 * queue. The work queue keeps track of pending work for us, and waits on
+	 * its own lock, so the minions are free to update the counters meanwhile.
+	 *
+	 * @see WorkQueue#finish()
 	 */
-	public synchronized void finish() {
-		try {
-			while (pending > 0) {
-				logger.debug("Waiting until finished");
-				this.wait();
-			}
-		}
-		catch (InterruptedException e) {
-			logger.debug("Finish interrupted", e);
-		}
+	public void finish() {
+		logger.debug("Waiting until finished");
+		minions.finish();
 	}
 
 	/**
 	 * Will shutdown the work queue after all the current pending work is
 	 * finished. Necessary to prevent our code from running forever in the
-	 * background.
+	 * background. The work queue finishes any pending work itself, so we no
+	 * longer need to wait for it here.
 	 */
-	public synchronized void shutdown() {
+	public void shutdown() {
 		logger.debug("Shutting down");
-		finish();
+		logger.debug("Work queue metrics: {}", minions.metrics());
 		minions.shutdown();
 	}
 
@@ -111,15 +293,38 @@ public class MultithreadedDirectorySizeCalculator {
 	 */
 	public void addDirectory(Path directory) {
 		try {
-			if (Files.isDirectory(directory)) {
+			BasicFileAttributes attributes = Files.readAttributes(directory, BasicFileAttributes.class);
+
+			ScanFilter filter = this.filter;
+
+			if (attributes.isDirectory()) {
 				// Note that we now create a new runnable object and add it
 				// to the work queue.
-				minions.execute(new DirectoryMinion(directory));
+				DirectoryMinion minion = new DirectoryMinion(directory, attributes.lastModifiedTime(), directory, 0,
+						filter);
+				DirectoryTree tree = this.tree;
+
+				if (tree != null) {
+					minion.tree = tree;
+					minion.node = tree.addRoot(directory);
+				}
+
+				try {
+					minions.execute(minion);
+				}
+				catch (RejectedExecutionException e) {
+					// otherwise the root would never be completed in the tree
+					minion.skip();
+					throw e;
+				}
 			}
-			else if (Files.exists(directory)) {
-				updateCounters(1, Files.size(directory));
+			else if (filter == null || filter.accept(directory.getFileName(), attributes)) {
+				updateCounters(1, attributes.size());
 			}
 		}
+		catch (NoSuchFileException e) {
+			logger.debug("Skipping missing path {}", directory);
+		}
 		catch (IOException e) {
 			logger.warn("Unable to calculate size for {}", directory);
 			logger.catching(Level.DEBUG, e);
@@ -128,52 +333,247 @@ public class MultithreadedDirectorySizeCalculator {
 
 	/**
 	 * Handles per-directory parsing. If a subdirectory is encountered, a new
-	 * {@link DirectoryMinion} is created to handle that subdirectory.
+	 * {@link DirectoryMinion} is created to handle that subdirectory. The
+	 * attributes of each entry are read once, so the modified time of each
+	 * subdirectory is passed along to its minion instead of read again.
+	 *
+	 * When building a {@link DirectoryTree}, each minion reports its own totals
+	 * to the tree when done, and the tree adds them to the parent directory
+	 * once all of its minions are done.
 	 */
 	private class DirectoryMinion implements Runnable {
 
 		private Path directory;
+		private FileTime modified;
+
+		/** Directory originally added, and the depth of this one below it. */
+		private Path root;
+		private int depth;
+
+		/** Filter to apply (or null) and the index to use (or null). */
+		private ScanFilter filter;
+		private DirectoryIndex index;
+
+		/** Tree to report to (or null) and the number of this directory. */
+		private DirectoryTree tree;
+		private int node;
+
+		/** Files and bytes directly inside this directory, for the tree. */
+		private long fileCount;
+		private long byteCount;
 
-		public DirectoryMinion(Path directory) {
+		// claimed by whichever runs first: the minion, or its parent giving
+		// up on it after the work queue rejected part of its batch
+		private final AtomicBoolean claimed;
+
+		public DirectoryMinion(Path directory, FileTime modified, Path root, int depth, ScanFilter filter) {
 			logger.debug("Minion created for {}", directory);
 			this.directory = directory;
+			this.modified = modified;
+			this.root = root;
+			this.depth = depth;
+			this.filter = filter;
+
+			// cached totals would include files the filter excludes
+			this.index = filter == null ? MultithreadedDirectorySizeCalculator.this.index : null;
+
+			this.tree = null;
+			this.node = -1;
+			this.claimed = new AtomicBoolean();
+		}
 
-			// Indicate we now have "pending" work to do. This is necessary
-			// so we know when our threads are "done", since we can no longer
-			// call the join() method on them.
-			incrementPending();
+		/**
+		 * Creates a minion for a subdirectory of this directory, using the
+		 * same filter.
+		 *
+		 * @param path
+		 *            subdirectory
+		 * @param modified
+		 *            last modified time of the subdirectory, or null
+		 * @return minion for the subdirectory
+		 */
+		private DirectoryMinion child(Path path, FileTime modified) {
+			return new DirectoryMinion(path, modified, root, depth + 1, filter);
 		}
 
 		@Override
 		public void run() {
+			if (!claimed.compareAndSet(false, true)) {
+				// already skipped and reported to the tree
+				return;
+			}
+
+			try {
+				scan();
+			}
+			finally {
+				// the tree needs every directory reported, even if it failed
+				if (tree != null) {
+					tree.complete(node, fileCount, byteCount);
+				}
+			}
+		}
+
+		/**
+		 * Adds the minions for the subdirectories to the tree (if building
+		 * one) and to the work queue.
+		 *
+		 * @param subdirectories
+		 *            minions for the subdirectories of this directory
+		 */
+		private void spawn(ArrayList<DirectoryMinion> subdirectories) {
+			if (tree != null && !subdirectories.isEmpty()) {
+				ArrayList<String> names = new ArrayList<>(subdirectories.size());
+
+				for (DirectoryMinion minion : subdirectories) {
+					names.add(minion.directory.getFileName().toString());
+				}
+
+				int first = tree.addChildren(node, names);
+
+				for (int i = 0; i < subdirectories.size(); i++) {
+					subdirectories.get(i).tree = tree;
+					subdirectories.get(i).node = first + i;
+				}
+			}
+
+			try {
+				// Only locks the work queue once for all of the subdirectories.
+				minions.executeAll(subdirectories);
+			}
+			catch (RejectedExecutionException e) {
+				// some minions may have been queued before the rest were
+				// rejected, so give up on every minion not yet started
+				int skipped = 0;
+
+				for (DirectoryMinion minion : subdirectories) {
+					if (minion.skip()) {
+						skipped++;
+					}
+				}
+
+				logger.warn("Skipped {} subdirectories of {} rejected by the work queue", skipped, directory);
+				logger.catching(Level.DEBUG, e);
+			}
+		}
+
+		/**
+		 * Gives up on this minion if it has not started yet, recording its
+		 * directory as incomplete. Also reports the directory to the tree (if
+		 * building one) without any files, so its parent is not left waiting
+		 * on it forever.
+		 *
+		 * @return true if this minion was skipped, false if it already started
+		 */
+		private boolean skip() {
+			if (!claimed.compareAndSet(false, true)) {
+				return false;
+			}
+
+			incomplete.add(directory);
+
+			if (tree != null) {
+				tree.complete(node, 0, 0);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Scans this directory, or uses its cached totals.
+		 */
+		private void scan() {
+			long scanned = System.currentTimeMillis();
+
+			try {
+				if (index != null && modified == null) {
+					modified = Files.getLastModifiedTime(directory);
+				}
+
+				DirectoryIndex.Entry cached = index == null ? null : index.lookup(directory, modified);
+
+				if (cached != null) {
+					// subdirectories may have changed even if this one did not
+					ArrayList<DirectoryMinion> subdirectories = new ArrayList<>();
+
+					for (Path path : cached.subdirectories(directory)) {
+						subdirectories.add(child(path, null));
+					}
+
+					spawn(subdirectories);
+
+					if (timedOut()) {
+						return;
+					}
+
+					updateCounters(cached.files(), cached.bytes());
+					fileCount = cached.files();
+					byteCount = cached.bytes();
+					notifyListener(directory, cached.files(), cached.bytes());
+					return;
+				}
+			}
+			catch (IOException e) {
+				logger.warn("Unable to parse {}", directory);
+				logger.catching(Level.DEBUG, e);
+				return;
+			}
+
 			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
 				long files = 0;
 				long bytes = 0;
 
+				// Note that we collect new minions for the subdirectories and
+				// add them all to the work queue at once when we are done.
+				ArrayList<DirectoryMinion> subdirectories = new ArrayList<>();
+				ArrayList<Path> paths = new ArrayList<>();
+
 				for (Path path : stream) {
-					if (Files.isDirectory(path)) {
-						// Note that we now create a new runnable object and add
-						// it
-						// to the work queue.
-						minions.execute(new DirectoryMinion(path));
+					// stop early if the work queue gave up on this minion
+					if (timedOut()) {
+						return;
 					}
-					else {
+
+					// Reads the attributes once instead of calling both
+					// Files.isDirectory(path) and Files.size(path).
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+					if (attributes.isDirectory()) {
+						// skips excluded directories before they are queued
+						if (filter == null || filter.descend(root.relativize(path), depth + 1)) {
+							subdirectories.add(child(path, attributes.lastModifiedTime()));
+							paths.add(path);
+						}
+					}
+					else if (filter == null || filter.accept(root.relativize(path), attributes)) {
 						// This is inefficient, and causes a lot of blocking.
-						// updateCounters(1, Files.size(path));
+						// updateCounters(1, attributes.size());
 
 						// Note that we are adding to LOCAL variables, so we
 						// only lock ONCE when we are done.
 						files += 1;
-						bytes += Files.size(path);
+						bytes += attributes.size();
 					}
 				}
 
+				spawn(subdirectories);
+
+				// subdirectories scanned here (when the work queue is full)
+				// count against the timeout of this minion too
+				if (timedOut()) {
+					return;
+				}
+
 				// Now that we are done, go ahead and lock to update the
 				// counter values.
 				updateCounters(files, bytes);
+				fileCount = files;
+				byteCount = bytes;
+				notifyListener(directory, files, bytes);
 
-				// Indicate that we no longer have "pending" work to do.
-				decrementPending();
+				if (index != null) {
+					index.update(directory, modified, scanned, files, bytes, paths);
+				}
 			}
 			catch (IOException e) {
 				logger.warn("Unable to parse {}", directory);
@@ -182,44 +582,125 @@ public class MultithreadedDirectorySizeCalculator {
 
 			logger.debug("Minion finished {}", directory);
 		}
+
+		/**
+		 * Checks whether the work queue gave up on this minion for running
+		 * past the timeout, and if so records this directory as incomplete.
+		 * The work queue no longer waits on this minion once it gives up, so
+		 * any totals added afterwards could be missed or arrive too late.
+		 *
+		 * @return true if this minion should stop without adding its totals
+		 */
+		private boolean timedOut() {
+			if (!Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+
+			logger.warn("Minion timed out while parsing {}", directory);
+			incomplete.add(directory);
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "DirectoryMinion[" + directory + "]";
+		}
 	}
 
 	/**
-	 * Updates the number of files and bytes found. Note that we had to make
-	 * this method synchronized to work in the multithreaded version.
+	 * Updates the number of files and bytes found. Note that this does not
+	 * need to be synchronized, since the counters are thread-safe.
 	 *
 	 * @param files
 	 * @param bytes
 	 */
-	private synchronized void updateCounters(long files, long bytes) {
-		this.files += files;
-		this.bytes += bytes;
-		logger.debug("Counters are {} files and {} bytes", this.files, this.bytes);
+	private void updateCounters(long files, long bytes) {
+		this.files.add(files);
+		this.bytes.add(bytes);
+		logger.debug("Added {} files and {} bytes", files, bytes);
 	}
 
 	/**
-	 * Indicates that we now have additional "pending" work to wait for. We need
-	 * this since we can no longer call join() on the threads. (The threads keep
-	 * running forever in the background.)
+	 * Reports a scanned directory to the listener, if there is one.
 	 *
-	 * We made this a synchronized method in the outer class, since locking on
-	 * the "this" object within an inner class does not work.
+	 * @param directory
+	 * @param files
+	 * @param bytes
 	 */
-	private synchronized void incrementPending() {
-		pending++;
-		logger.debug("Pending is now {}", pending);
+	private void notifyListener(Path directory, long files, long bytes) {
+		DirectoryListener listener = this.listener;
+
+		if (listener != null) {
+			listener.scanned(directory, files, bytes);
+		}
 	}
 
 	/**
-	 * Indicates that we now have one less "pending" work, and will notify any
-	 * waiting threads if we no longer have any more pending work left.
+	 * Progress of a scan at a single point in time.
+	 *
+	 * @see MultithreadedDirectorySizeCalculator#snapshot()
 	 */
-	private synchronized void decrementPending() {
-		pending--;
-		logger.debug("Pending is now {}", pending);
+	public static class Snapshot {
 
-		if (pending <= 0) {
-			this.notifyAll();
+		private final long files;
+		private final long bytes;
+		private final int pending;
+
+		/**
+		 * Initializes a snapshot with the specified progress.
+		 *
+		 * @param files
+		 *            number of files found so far
+		 * @param bytes
+		 *            number of bytes found so far
+		 * @param pending
+		 *            number of directories left to scan
+		 */
+		public Snapshot(long files, long bytes, int pending) {
+			this.files = files;
+			this.bytes = bytes;
+			this.pending = pending;
+		}
+
+		/**
+		 * Returns the number of files found so far.
+		 *
+		 * @return number of files
+		 */
+		public long files() {
+			return files;
+		}
+
+		/**
+		 * Returns the number of bytes found so far.
+		 *
+		 * @return number of bytes
+		 */
+		public long bytes() {
+			return bytes;
+		}
+
+		/**
+		 * Returns the number of directories still queued or being scanned.
+		 *
+		 * @return number of pending directories
+		 */
+		public int pending() {
+			return pending;
+		}
+
+		/**
+		 * Returns whether the scan was finished when this snapshot was taken.
+		 *
+		 * @return true if there were no pending directories
+		 */
+		public boolean isFinished() {
+			return pending == 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d files, %d bytes, %d directories pending", files, bytes, pending);
 		}
 	}
 
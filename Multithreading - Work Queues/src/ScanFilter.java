@@ -0,0 +1,294 @@
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Decides which files and subdirectories the directory size calculators
+ * include while scanning. Subdirectories that are excluded (or too deep) are
+ * skipped before they are listed or queued, so excluding large directories
+ * like {@code .git} or {@code node_modules} saves scanning them at all.
+ *
+ * Globs use the syntax of {@link FileSystems#getPathMatcher(String)}. A glob
+ * without a {@code /} is matched against the name of each file or directory
+ * (for example, {@code *.jpg} or {@code .git}), and a glob with a {@code /} is
+ * matched against the path relative to the directory being scanned (for
+ * example, {@code docs/**}). Exclude globs apply to both files and
+ * directories, but include globs and the other conditions only apply to
+ * files. An exclude glob that ends with {@code /**} also skips the directory
+ * it names, so {@code docs/**} skips {@code docs} instead of listing it only to
+ * exclude everything inside.
+ *
+ * Filters are immutable; each method returns a new filter with the added
+ * condition. For example:
+ *
+ * <pre>
+ * ScanFilter filter = ScanFilter.ALL.exclude(".git", "node_modules").include("*.java").maxDepth(5);
+ * </pre>
+ *
+ * @see DirectorySizeCalculator#setFilter(ScanFilter)
+ * @see MultithreadedDirectorySizeCalculator#setFilter(ScanFilter)
+ */
+public class ScanFilter {
+
+	/** Filter that includes every file and directory. */
+	public static final ScanFilter ALL = new ScanFilter(Collections.emptyList(), Collections.emptyList(),
+			Integer.MAX_VALUE, null);
+
+	/** Files must match at least one of these, if there are any. */
+	private final List<Glob> includes;
+
+	/** Files and directories must not match any of these. */
+	private final List<Glob> excludes;
+
+	/** Maximum depth of subdirectories to scan. */
+	private final int maxDepth;
+
+	/** Condition files must meet, or null if none. */
+	private final Predicate<BasicFileAttributes> condition;
+
+	/**
+	 * Initializes a filter with the specified conditions.
+	 *
+	 * @param includes
+	 * @param excludes
+	 * @param maxDepth
+	 * @param condition
+	 */
+	private ScanFilter(List<Glob> includes, List<Glob> excludes, int maxDepth,
+			Predicate<BasicFileAttributes> condition) {
+		this.includes = includes;
+		this.excludes = excludes;
+		this.maxDepth = maxDepth;
+		this.condition = condition;
+	}
+
+	/**
+	 * Returns a filter that only includes files that match at least one of
+	 * the specified globs (or any globs included before).
+	 *
+	 * @param globs
+	 *            globs of files to include
+	 * @return new filter
+	 */
+	public ScanFilter include(String... globs) {
+		return new ScanFilter(add(includes, globs), excludes, maxDepth, condition);
+	}
+
+	/**
+	 * Returns a filter that also excludes files and directories that match
+	 * any of the specified globs. Excluded directories are not scanned.
+	 *
+	 * @param globs
+	 *            globs of files and directories to exclude
+	 * @return new filter
+	 */
+	public ScanFilter exclude(String... globs) {
+		return new ScanFilter(includes, add(excludes, globs), maxDepth, condition);
+	}
+
+	/**
+	 * Returns a filter that only scans subdirectories up to the specified
+	 * depth. A depth of 0 only includes the files directly inside the
+	 * directory being scanned, a depth of 1 also includes the files in its
+	 * subdirectories, and so on.
+	 *
+	 * @param depth
+	 *            maximum depth of subdirectories to scan
+	 * @return new filter
+	 */
+	public ScanFilter maxDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Depth must be at least 0.");
+		}
+
+		return new ScanFilter(includes, excludes, depth, condition);
+	}
+
+	/**
+	 * Returns a filter that only includes files with at least the specified
+	 * number of bytes.
+	 *
+	 * @param bytes
+	 *            minimum size of files
+	 * @return new filter
+	 */
+	public ScanFilter minSize(long bytes) {
+		return where(attributes -> attributes.size() >= bytes);
+	}
+
+	/**
+	 * Returns a filter that only includes files with at most the specified
+	 * number of bytes.
+	 *
+	 * @param bytes
+	 *            maximum size of files
+	 * @return new filter
+	 */
+	public ScanFilter maxSize(long bytes) {
+		return where(attributes -> attributes.size() <= bytes);
+	}
+
+	/**
+	 * Returns a filter that only includes files last modified after the
+	 * specified time.
+	 *
+	 * @param time
+	 *            time files must be modified after
+	 * @return new filter
+	 */
+	public ScanFilter modifiedAfter(FileTime time) {
+		return where(attributes -> attributes.lastModifiedTime().compareTo(time) > 0);
+	}
+
+	/**
+	 * Returns a filter that only includes files last modified before the
+	 * specified time.
+	 *
+	 * @param time
+	 *            time files must be modified before
+	 * @return new filter
+	 */
+	public ScanFilter modifiedBefore(FileTime time) {
+		return where(attributes -> attributes.lastModifiedTime().compareTo(time) < 0);
+	}
+
+	/**
+	 * Returns a filter that only includes files whose attributes meet the
+	 * specified condition (as well as any conditions added before).
+	 *
+	 * @param test
+	 *            condition files must meet
+	 * @return new filter
+	 */
+	public ScanFilter where(Predicate<BasicFileAttributes> test) {
+		return new ScanFilter(includes, excludes, maxDepth, condition == null ? test : condition.and(test));
+	}
+
+	/**
+	 * Returns whether to scan a subdirectory.
+	 *
+	 * @param relative
+	 *            path of the subdirectory relative to the directory being
+	 *            scanned
+	 * @param depth
+	 *            depth of the subdirectory, starting at 1 for subdirectories
+	 *            directly inside the directory being scanned
+	 * @return true if the subdirectory should be scanned
+	 */
+	public boolean descend(Path relative, int depth) {
+		if (depth > maxDepth) {
+			return false;
+		}
+
+		for (Glob glob : excludes) {
+			if (glob.matches(relative) || glob.contains(relative)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns whether to include a file.
+	 *
+	 * @param relative
+	 *            path of the file relative to the directory being scanned
+	 * @param attributes
+	 *            attributes of the file
+	 * @return true if the file should be included
+	 */
+	public boolean accept(Path relative, BasicFileAttributes attributes) {
+		if (matches(excludes, relative)) {
+			return false;
+		}
+
+		if (!includes.isEmpty() && !matches(includes, relative)) {
+			return false;
+		}
+
+		return condition == null || condition.test(attributes);
+	}
+
+	/**
+	 * Returns whether a path matches any of the globs.
+	 *
+	 * @param globs
+	 * @param relative
+	 * @return true if any glob matches
+	 */
+	private static boolean matches(List<Glob> globs, Path relative) {
+		for (Glob glob : globs) {
+			if (glob.matches(relative)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns a copy of the globs with the new globs added.
+	 *
+	 * @param globs
+	 * @param patterns
+	 * @return new list of globs
+	 */
+	private static List<Glob> add(List<Glob> globs, String[] patterns) {
+		ArrayList<Glob> added = new ArrayList<>(globs);
+
+		for (String pattern : patterns) {
+			added.add(new Glob(pattern));
+		}
+
+		return Collections.unmodifiableList(added);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ScanFilter[include %s, exclude %s, depth %d]", includes, excludes, maxDepth);
+	}
+
+	/**
+	 * A compiled glob, and whether to match it against the whole relative
+	 * path or only the name.
+	 */
+	private static class Glob {
+
+		private final String pattern;
+		private final PathMatcher matcher;
+		private final boolean whole;
+
+		/** Matches directories this glob matches everything inside, or null. */
+		private final PathMatcher contents;
+
+		public Glob(String pattern) {
+			this.pattern = pattern;
+			this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+			this.whole = pattern.indexOf('/') >= 0;
+
+			// "docs/**" matches everything inside of "docs"
+			String parent = pattern.endsWith("/**") ? pattern.substring(0, pattern.length() - 3) : "";
+			this.contents = parent.isEmpty() ? null : FileSystems.getDefault().getPathMatcher("glob:" + parent);
+		}
+
+		public boolean matches(Path relative) {
+			return matcher.matches(whole ? relative : relative.getFileName());
+		}
+
+		public boolean contains(Path directory) {
+			return contents != null && contents.matches(directory);
+		}
+
+		@Override
+		public String toString() {
+			return pattern;
+		}
+	}
+}
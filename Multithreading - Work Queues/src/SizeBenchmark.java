@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Compares calculating directory sizes by checking whether each entry is a
+ * directory and then its size separately (two file system calls per file)
+ * against the size calculators, which read the attributes of each entry once.
+ */
+public class SizeBenchmark {
+
+	public static final int WARMUP_ROUNDS = 10;
+	public static final int TIMED_ROUNDS = 20;
+
+	public static void main(String[] args) {
+		// TODO Change this to a large directory on your system!
+		Path test = Paths.get("..", "..").toAbsolutePath().normalize();
+
+		Legacy expected = new Legacy();
+		expected.add(test);
+
+		System.out.println("Benchmarking separate directory and size checks...");
+		double legacy = new Benchmarker() {
+			@Override
+			public long[] run(Path path) {
+				Legacy calculator = new Legacy();
+				calculator.add(path);
+				return new long[] { calculator.files, calculator.bytes };
+			}
+		}.benchmark(test, expected);
+
+		System.out.println("Benchmarking directory size calculator...");
+		double serial = new Benchmarker() {
+			@Override
+			public long[] run(Path path) {
+				DirectorySizeCalculator calculator = new DirectorySizeCalculator();
+				calculator.addPath(path);
+				return new long[] { calculator.files(), calculator.bytes() };
+			}
+		}.benchmark(test, expected);
+
+		System.out.println("Benchmarking multithreaded directory size calculator...");
+		double multithreaded = new Benchmarker() {
+			@Override
+			public long[] run(Path path) {
+				MultithreadedDirectorySizeCalculator calculator = new MultithreadedDirectorySizeCalculator();
+				calculator.addDirectory(path);
+				long[] results = new long[] { calculator.files(), calculator.bytes() };
+				calculator.shutdown();
+				return results;
+			}
+		}.benchmark(test, expected);
+
+		System.out.println();
+		System.out.println(String.format("%20s: %8d files, %d directories", "Entries", expected.files,
+				expected.entries - expected.files));
+		System.out.println(String.format("%20s: %8.2fms", "Separate Checks", legacy));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Serial", serial, legacy / serial));
+		System.out.println(String.format("%20s: %8.2fms\t\tSpeedup: %.2fx", "Multithreaded", multithreaded,
+				legacy / multithreaded));
+	}
+
+	private static abstract class Benchmarker {
+		public abstract long[] run(Path path);
+
+		public double benchmark(Path path, Legacy expected) {
+			// verify results first
+			long[] results = run(path);
+
+			if (results[0] != expected.files || results[1] != expected.bytes) {
+				System.err.println("Unexpected results!");
+			}
+
+			// warmup
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(path);
+			}
+
+			// timed
+			Instant start = Instant.now();
+			for (int i = 0; i < TIMED_ROUNDS; i++) {
+				run(path);
+			}
+			Instant end = Instant.now();
+
+			// averaged result
+			Duration elapsed = Duration.between(start, end);
+			return (double) elapsed.toMillis() / TIMED_ROUNDS;
+		}
+	}
+
+	/**
+	 * Calculates directory sizes the way the size calculators used to, by
+	 * calling {@link Files#isDirectory(Path, java.nio.file.LinkOption...)} and
+	 * then {@link Files#size(Path)} for each entry.
+	 */
+	private static class Legacy {
+		private long files;
+		private long bytes;
+
+		/** Number of entries found, including the directory added. */
+		private long entries;
+
+		public void add(Path path) {
+			entries++;
+
+			try {
+				if (Files.isDirectory(path)) {
+					try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+						for (Path child : stream) {
+							add(child);
+						}
+					}
+				}
+				else {
+					bytes += Files.size(path);
+					files++;
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Unable to calculate size for " + path);
+			}
+		}
+	}
+}
@@ -1,9 +1,57 @@
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * A simple work queue implementation based on the IBM developerWorks article by
- * Brian Goetz. It is up to the user of this class to keep track of whether
- * there is any pending work remaining.
+ * Brian Goetz. The work queue keeps track of how much work is pending (queued
+ * or running), so users may call {@link #finish()} to wait until all work is
+ * done instead of keeping track of pending work themselves.
+ *
+ * When the work queue is shutdown, any queued work is still finished before
+ * the worker threads exit. Use {@link #shutdownNow()} to stop the workers
+ * without running queued work, and {@link #awaitTermination(long, TimeUnit)}
+ * to wait for the worker threads to exit.
+ *
+ * Tasks that return a result may be submitted with {@link #submit(Callable)},
+ * and a task may split its work into child tasks and combine their results
+ * using a {@link WorkScope}. Tasks may also be given a timeout, either for
+ * every task with {@link #setTaskTimeout(long, TimeUnit)} or for a single task
+ * with {@link #submit(Callable, long, TimeUnit)}. A task that runs past its
+ * timeout is logged and interrupted, and its worker is replaced right away, so
+ * a task stuck on a blocking call that ignores interrupts (like a hung network
+ * mount) does not quietly shrink the pool. Counters and timing histograms for
+ * the work queue are available from {@link #metrics()}.
+ *
+ * Unlike the original article, the workers wait on an explicit condition
+ * instead of the queue monitor. Each new task wakes up at most one waiting
+ * worker (instead of every waiting worker with {@code notifyAll()}), which
+ * avoids a "thundering herd" of workers waking up only to find the task was
+ * already taken and going back to sleep.
+ *
+ * This class runs tasks first in, first out on a fixed number of threads.
+ * Subclasses change how tasks are queued and how many workers run them by
+ * overriding the protected methods, such as {@code BoundedWorkQueue} (limits
+ * the number of waiting tasks), {@code StealingWorkQueue} (per-worker deques),
+ * {@code ElasticWorkQueue} (grows and shrinks, or uses virtual threads), and
+ * {@code PriorityWorkQueue} (earliest deadline first).
  *
  * @see <a href=
  *      "http://www.ibm.com/developerworks/library/j-jtp0730/index.html">Java
@@ -11,21 +59,69 @@ import java.util.LinkedList;
  */
 public class WorkQueue {
 
+	private static final Logger log = LogManager.getLogger();
+
 	/**
 	 * Pool of worker threads that will wait in the background until work is
-	 * available.
+	 * available. The array is replaced (never modified) while locked whenever
+	 * workers are added or removed, so it is safe to iterate without locking.
 	 */
-	private final PoolWorker[] workers;
+	private volatile PoolWorker[] workers;
+
+	/** Used to find the worker (if any) of this queue running a thread. */
+	private final ThreadLocal<PoolWorker> current;
+
+	/** Indices in use by live workers. Only accessed while locked. */
+	private final BitSet ids;
+
+	/** Guards the queue and the worker array. */
+	protected final ReentrantLock lock;
+
+	/** Signaled when work is available or the workers should exit. */
+	private final Condition available;
+
+	/** Queue of pending work requests. Only accessed while locked. */
+	private final Queue<Task> queue;
+
+	/** Number of tasks submitted but not yet finished running. */
+	private final AtomicInteger pending;
+
+	/** Signaled when there is no more pending work. */
+	private final Condition quiet;
+
+	/** Number of threads waiting on {@link #quiet}. Only modified while locked. */
+	private volatile int finishing;
 
-	/** Queue of pending work requests. */
-	private final LinkedList<Runnable> queue;
+	/** Counters and timing histograms for this work queue. */
+	private final WorkQueueMetrics metrics;
 
-	/** Used to signal the queue should be shutdown. */
+	/** Number of workers waiting for work. Only modified while locked. */
+	private volatile int idle;
+
+	/** Number of waiting workers signaled to wake up. Only accessed while locked. */
+	private int waking;
+
+	/** Used to signal the queue should be shutdown once work is finished. */
 	private volatile boolean shutdown;
 
+	/** Used to signal the queue should stop without finishing work. */
+	private volatile boolean stopped;
+
+	/** Whether the last worker exited after a shutdown. Only accessed while locked. */
+	private boolean terminated;
+
+	/** Nanoseconds any task may run before it is interrupted, or 0. */
+	private volatile long taskTimeout;
+
+	/** Checks for tasks running past their timeout. */
+	private final WorkQueueWatchdog watchdog;
+
 	/** The default number of threads to use when not specified. */
 	public static final int DEFAULT = 5;
 
+	/** Longest time in milliseconds between checks for stuck tasks. */
+	public static final long WATCH_PERIOD = 100;
+
 	/**
 	 * Starts a work queue with the default number of threads.
 	 *
@@ -42,43 +138,436 @@ public class WorkQueue {
 	 *            number of worker threads; should be greater than 1
 	 */
 	public WorkQueue(int threads) {
-		this.queue = new LinkedList<Runnable>();
-		this.workers = new PoolWorker[threads];
-
-		shutdown = false;
+		this(threads, new ArrayDeque<Task>());
 
 		// start the threads so they are waiting in the background
-		for (int i = 0; i < threads; i++) {
-			workers[i] = new PoolWorker();
-			workers[i].start();
+		start(threads);
+	}
+
+	/**
+	 * Initializes a work queue that keeps waiting tasks in the specified queue,
+	 * without starting any workers. Subclasses start their workers with
+	 * {@link #start(int)} once they are initialized, since the workers call
+	 * the protected methods right away.
+	 *
+	 * @param max
+	 *            maximum number of workers that may run at once
+	 * @param queue
+	 *            empty queue to hold waiting tasks
+	 */
+	protected WorkQueue(int max, Queue<Task> queue) {
+		if (max < 1) {
+			throw new IllegalArgumentException("Invalid number of threads.");
 		}
+
+		this.lock = new ReentrantLock();
+		this.available = lock.newCondition();
+		this.quiet = lock.newCondition();
+		this.queue = queue;
+		this.workers = new PoolWorker[0];
+		this.current = new ThreadLocal<>();
+		this.ids = new BitSet();
+		this.pending = new AtomicInteger();
+		this.metrics = new WorkQueueMetrics(Math.min(max, WorkQueueMetrics.MAX_WORKERS));
+		this.watchdog = new WorkQueueWatchdog("WorkQueueWatchdog", this::checkTimeouts);
+
+		idle = 0;
+		waking = 0;
+		finishing = 0;
+		shutdown = false;
+		stopped = false;
+		terminated = false;
+		taskTimeout = 0;
+	}
+
+	/**
+	 * Estimates the number of threads to use for tasks that spend the
+	 * specified fraction of their time blocked (for example, waiting on disk or
+	 * network I/O), based on the number of processors available. Uses the
+	 * formula from "Java Concurrency in Practice" by Brian Goetz, et al.
+	 *
+	 * @param blocking
+	 *            fraction of time tasks spend blocked, between 0 and 1
+	 * @return recommended number of threads
+	 */
+	public static int recommended(double blocking) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		blocking = Math.min(Math.max(blocking, 0), 0.99);
+		return Math.max(1, (int) Math.round(cores / (1 - blocking)));
 	}
 
 	/**
 	 * Adds a work request to the queue. A thread will process this request when
 	 * available.
 	 *
+	 * Once the queue is shutdown, only tasks submitted by the workers of this
+	 * queue (while finishing the remaining work) are accepted.
+	 *
 	 * @param r
 	 *            work request (in the form of a {@link Runnable} object)
+	 * @throws RejectedExecutionException
+	 *             if the queue has been shutdown (or if a subclass does not
+	 *             accept the request)
 	 */
 	public void execute(Runnable r) {
-		synchronized (queue) {
-			queue.addLast(r);
-			queue.notifyAll();
+		enqueue(newTask(r, 0));
+	}
+
+	/**
+	 * Adds a batch of work requests to the queue at once. This only locks the
+	 * queue once for the entire batch (instead of once per request), and only
+	 * wakes up as many waiting workers as there are new requests. Requests a
+	 * subclass does not accept as part of the batch are added one at a time
+	 * with {@link #execute(Runnable)} instead.
+	 *
+	 * @param tasks
+	 *            work requests to add (should not be modified by other threads
+	 *            while being added)
+	 * @throws RejectedExecutionException
+	 *             if the queue has been shutdown (or if a subclass does not
+	 *             accept a request, in which case some of the requests may have
+	 *             already been added)
+	 *
+	 * @see #execute(Runnable)
+	 */
+	public void executeAll(Collection<? extends Runnable> tasks) {
+		PoolWorker worker = current.get();
+
+		if (stopped || (shutdown && worker == null)) {
+			metrics.tasksRejected(tasks.size());
+			throw new RejectedExecutionException("Work queue has been shutdown.");
+		}
+
+		int accepted = admitAll(tasks.size());
+		Iterator<? extends Runnable> iterator = tasks.iterator();
+
+		if (accepted > 0) {
+			// lock-free, so tracking pending work does not add any locking
+			pending.addAndGet(accepted);
+
+			Task[] shared = new Task[accepted];
+			int count = 0;
+
+			for (int i = 0; i < accepted; i++) {
+				Task task = newTask(iterator.next(), 0);
+
+				if (worker == null || !push(worker.id, task)) {
+					shared[count++] = task;
+				}
+			}
+
+			if (count < accepted) {
+				metrics.tasksQueued(accepted - count);
+				signal(accepted - count);
+			}
+
+			if (count > 0) {
+				lock.lock();
+
+				try {
+					// only submitters that are not workers may be rejected here
+					if (stopped || (shutdown && worker == null)) {
+						removed(count);
+						finished(count);
+						metrics.tasksRejected(tasks.size());
+						throw new RejectedExecutionException("Work queue has been shutdown.");
+					}
+
+					for (int i = 0; i < count; i++) {
+						queue.add(shared[i]);
+					}
+
+					metrics.tasksQueued(count);
+					wake(queue.size());
+					queued(count);
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		// anything the subclass did not accept as part of the batch
+		while (iterator.hasNext()) {
+			execute(iterator.next());
+		}
+	}
+
+	/**
+	 * Adds a work request that returns a result to the queue.
+	 *
+	 * @param <V>
+	 *            type of result
+	 * @param task
+	 *            work request (in the form of a {@link Callable} object)
+	 * @return future result of the work request
+	 * @throws RejectedExecutionException
+	 *             if the queue has been shutdown
+	 *
+	 * @see #execute(Runnable)
+	 */
+	public <V> WorkFuture<V> submit(Callable<? extends V> task) {
+		WorkFuture<V> future = new WorkFuture<>(task);
+		execute(future);
+		return future;
+	}
+
+	/**
+	 * Adds a work request that returns a result to the queue, which will be
+	 * cancelled if it runs longer than the specified timeout. The timeout only
+	 * starts once a worker starts running the request. A request that times out
+	 * is interrupted, and its result is reported as cancelled. Requests run by
+	 * the submitter instead of a worker do not time out.
+	 *
+	 * @param <V>
+	 *            type of result
+	 * @param task
+	 *            work request (in the form of a {@link Callable} object)
+	 * @param timeout
+	 *            maximum amount of time the work request may run
+	 * @param unit
+	 *            time unit of the timeout
+	 * @return future result of the work request, which may also be used to
+	 *         cancel the work request
+	 * @throws RejectedExecutionException
+	 *             if the queue has been shutdown
+	 *
+	 * @see #submit(Callable)
+	 * @see #setTaskTimeout(long, TimeUnit)
+	 */
+	public <V> WorkFuture<V> submit(Callable<? extends V> task, long timeout, TimeUnit unit) {
+		long nanos = Math.max(1, unit.toNanos(timeout));
+		WorkFuture<V> future = new WorkFuture<>(task);
+
+		watch(nanos);
+		enqueue(newTask(future, nanos));
+		return future;
+	}
+
+	/**
+	 * Sets the maximum amount of time any task may run before it is considered
+	 * stuck. Stuck tasks are logged and interrupted, and the worker running
+	 * the task is replaced by a new worker. Tasks submitted with their own
+	 * timeout use that timeout instead.
+	 *
+	 * @param timeout
+	 *            maximum amount of time a task may run, or 0 for no limit
+	 * @param unit
+	 *            time unit of the timeout
+	 *
+	 * @see #submit(Callable, long, TimeUnit)
+	 */
+	public void setTaskTimeout(long timeout, TimeUnit unit) {
+		long nanos = Math.max(0, unit.toNanos(timeout));
+		taskTimeout = nanos;
+
+		if (nanos > 0) {
+			watch(nanos);
+		}
+	}
+
+	/**
+	 * Creates a new scope for forking child tasks on this queue and joining
+	 * their results.
+	 *
+	 * @param <V>
+	 *            type of result returned by the child tasks
+	 * @return new fork/join scope
+	 */
+	public <V> WorkScope<V> scope() {
+		return new WorkScope<>(this);
+	}
+
+	/**
+	 * Waits until there is no more pending work. Work submitted by other tasks
+	 * while waiting is also waited on.
+	 */
+	public void finish() {
+		lock.lock();
+		finishing++;
+
+		try {
+			while (pending.get() > 0) {
+				quiet.await();
+			}
+		}
+		catch (InterruptedException e) {
+			log.warn("Work queue interrupted while finishing.");
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			finishing--;
+			lock.unlock();
 		}
 	}
 
 	/**
-	 * Asks the queue to shutdown. Any unprocessed work will not be finished,
-	 * but threads in-progress will not be interrupted.
+	 * Waits until there is no more pending work, or the specified amount of
+	 * time has passed.
+	 *
+	 * @param timeout
+	 *            maximum amount of time to wait
+	 * @param unit
+	 *            time unit of the timeout
+	 * @return true if there is no more pending work, false if the timeout
+	 *         passed first
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+
+		lock.lock();
+		finishing++;
+
+		try {
+			while (pending.get() > 0) {
+				if (remaining <= 0) {
+					return false;
+				}
+
+				remaining = quiet.awaitNanos(remaining);
+			}
+		}
+		finally {
+			finishing--;
+			lock.unlock();
+		}
+
+		return pending.get() == 0;
+	}
+
+	/**
+	 * Returns the number of tasks that have been submitted but not finished.
+	 * This includes tasks waiting in the queue and tasks currently running.
+	 *
+	 * @return number of pending tasks
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Asks the queue to shutdown. No new work will be accepted, but any queued
+	 * work (and any work it creates) will be finished before the worker
+	 * threads exit. Does not wait for the work to finish.
+	 *
+	 * @see #awaitTermination(long, TimeUnit)
 	 */
 	public void shutdown() {
-		// safe to do unsynchronized due to volatile keyword
-		shutdown = true;
+		lock.lock();
+
+		try {
+			shutdown = true;
+			available.signalAll();
+			checkTerminated();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		metrics.stopReporter();
+	}
+
+	/**
+	 * Asks the queue to shutdown immediately. Any queued work is removed and
+	 * returned without being run, and worker threads that are running a task
+	 * are interrupted. Does not wait for the worker threads to exit.
+	 *
+	 * @return list of tasks that were never run
+	 *
+	 * @see #awaitTermination(long, TimeUnit)
+	 */
+	public List<Runnable> shutdownNow() {
+		List<Runnable> unrun = new ArrayList<>();
+
+		lock.lock();
+
+		try {
+			shutdown = true;
+			stopped = true;
+
+			for (Task task; (task = queue.poll()) != null;) {
+				unrun.add(dropped(task));
+			}
+
+			for (PoolWorker worker : workers) {
+				for (Task task; (task = poll(worker.id)) != null;) {
+					unrun.add(dropped(task));
+				}
+			}
+
+			available.signalAll();
+			checkTerminated();
+		}
+		finally {
+			lock.unlock();
+		}
 
-		synchronized (queue) {
-			queue.notifyAll();
+		for (PoolWorker worker : workers) {
+			worker.thread.interrupt();
 		}
+
+		metrics.stopReporter();
+		watchdog.cancel();
+		return unrun;
+	}
+
+	/**
+	 * Waits until all worker threads have exited after a shutdown, or the
+	 * specified amount of time has passed.
+	 *
+	 * @param timeout
+	 *            maximum amount of time to wait
+	 * @param unit
+	 *            time unit of the timeout
+	 * @return true if all worker threads exited, false if the timeout passed
+	 *         first
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		// workers remove themselves from the array as they exit
+		for (PoolWorker[] current = workers; current.length > 0; current = workers) {
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				return false;
+			}
+
+			TimeUnit.NANOSECONDS.timedJoin(current[0].thread, remaining);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the counters and timing histograms for this work queue.
+	 *
+	 * @return metrics for this work queue
+	 */
+	public WorkQueueMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns whether this work queue has been shutdown.
+	 *
+	 * @return true if {@link #shutdown()} or {@link #shutdownNow()} was called
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Returns whether all worker threads have exited after a shutdown.
+	 *
+	 * @return true if the work queue is shutdown and no workers are running
+	 */
+	public boolean isTerminated() {
+		return shutdown && workers.length == 0;
 	}
 
 	/**
@@ -90,47 +579,763 @@ public class WorkQueue {
 		return workers.length;
 	}
 
+	/**
+	 * Creates the task for a work request. Subclasses may return a subclass of
+	 * {@link Task} with more information about the request.
+	 *
+	 * @param r
+	 *            work request
+	 * @param timeout
+	 *            nanoseconds the work request may run, or 0 to use the
+	 *            timeout of this queue
+	 * @return task to add to the queue
+	 */
+	protected Task newTask(Runnable r, long timeout) {
+		return new Task(r, timeout);
+	}
+
+	/**
+	 * Creates the thread for a new worker. Uses platform threads by default.
+	 *
+	 * @param worker
+	 *            worker for the thread to run
+	 * @return new (unstarted) thread
+	 */
+	protected Thread newThread(Runnable worker) {
+		return new Thread(worker);
+	}
+
+	/**
+	 * Decides whether a task may be added to the queue. Accepts every task by
+	 * default.
+	 *
+	 * @param task
+	 *            task being submitted
+	 * @param worker
+	 *            whether the task is submitted by a worker of this queue
+	 * @return true to add the task to the queue, or false to run it in the
+	 *         submitting thread instead
+	 * @throws RejectedExecutionException
+	 *             if the task should be rejected
+	 */
+	protected boolean admit(Task task, boolean worker) {
+		return true;
+	}
+
+	/**
+	 * Decides how many tasks of a batch may be added to the queue at once.
+	 * The rest are submitted one at a time. Accepts the whole batch by
+	 * default.
+	 *
+	 * @param count
+	 *            number of tasks in the batch
+	 * @return number of tasks to add to the queue at once
+	 */
+	protected int admitAll(int count) {
+		return count;
+	}
+
+	/**
+	 * Called when admitted tasks leave the queue, whether they are about to
+	 * run, were dropped, or were rejected after all. Does nothing by default.
+	 *
+	 * @param count
+	 *            number of tasks
+	 */
+	protected void removed(int count) {
+	}
+
+	/**
+	 * Gives a subclass the chance to keep a task submitted by a worker of this
+	 * queue somewhere other than the shared queue. Tasks kept elsewhere must be
+	 * handed back by {@link #poll(int)} or {@link #steal(int)}. Keeps nothing
+	 * by default.
+	 *
+	 * @param worker
+	 *            index of the submitting worker
+	 * @param task
+	 *            task being submitted
+	 * @return true if the subclass kept the task
+	 */
+	protected boolean push(int worker, Task task) {
+		return false;
+	}
+
+	/**
+	 * Returns the next task kept by {@link #push(int, Task)} for a worker to
+	 * run, without locking. Called before the worker checks the shared queue,
+	 * and to empty out every worker after {@link #shutdownNow()}.
+	 *
+	 * @param worker
+	 *            index of the worker looking for work
+	 * @return task to run, or null if none
+	 */
+	protected Task poll(int worker) {
+		return null;
+	}
+
+	/**
+	 * Returns a task kept for another worker by {@link #push(int, Task)}, once
+	 * the shared queue is empty.
+	 *
+	 * @param worker
+	 *            index of the worker looking for work
+	 * @return task to run, or null if none
+	 */
+	protected Task steal(int worker) {
+		return null;
+	}
+
+	/**
+	 * Returns whether any tasks are kept outside of the shared queue, in which
+	 * case idle workers should not wait. Called while locked.
+	 *
+	 * @return true if tasks are kept outside of the shared queue
+	 */
+	protected boolean hasLocalWork() {
+		return false;
+	}
+
+	/**
+	 * Called while locked after tasks are added to the shared queue (and any
+	 * idle workers were woken up). Does nothing by default.
+	 *
+	 * @param count
+	 *            number of tasks added
+	 */
+	protected void queued(int count) {
+	}
+
+	/**
+	 * Called by a worker after it takes a task, with how long the task waited
+	 * in the queue. Does nothing by default.
+	 *
+	 * @param nanos
+	 *            nanoseconds the task waited
+	 */
+	protected void waited(long nanos) {
+	}
+
+	/**
+	 * Returns how long an idle worker may wait for work before it exits.
+	 * Called while locked each time an idle worker checks for work. Workers
+	 * never exit while idle by default.
+	 *
+	 * @return nanoseconds an idle worker may wait for work
+	 */
+	protected long keepAlive() {
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Called while locked once the queue is shutdown and the last worker has
+	 * exited. Does nothing by default.
+	 */
+	protected void terminated() {
+	}
+
+	/**
+	 * Starts the specified number of workers.
+	 *
+	 * @param threads
+	 *            number of worker threads to start
+	 */
+	protected void start(int threads) {
+		lock.lock();
+
+		try {
+			for (int i = 0; i < threads; i++) {
+				addWorker();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts a new worker thread, unless the queue was stopped by
+	 * {@link #shutdownNow()}. Must be called while locked.
+	 */
+	protected void addWorker() {
+		assert lock.isHeldByCurrentThread();
+
+		if (stopped) {
+			return;
+		}
+
+		PoolWorker worker = new PoolWorker(ids.nextClearBit(0));
+		ids.set(worker.id);
+
+		PoolWorker[] current = workers;
+		PoolWorker[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = worker;
+		workers = updated;
+
+		worker.thread.start();
+	}
+
+	/**
+	 * Returns the number of workers waiting for work.
+	 *
+	 * @return number of idle workers
+	 */
+	protected int idle() {
+		return idle;
+	}
+
+	/**
+	 * Returns how long the next task in the shared queue has been waiting.
+	 * Must be called while locked.
+	 *
+	 * @return nanoseconds the next task has waited, or 0 if none are waiting
+	 */
+	protected long waiting() {
+		assert lock.isHeldByCurrentThread();
+
+		Task next = queue.peek();
+		return next == null ? 0 : System.nanoTime() - next.queued;
+	}
+
+	/**
+	 * Adds a task to the queue, unless {@link #admit(Task, boolean)} decides
+	 * otherwise.
+	 *
+	 * @param task
+	 *            task to add
+	 * @throws RejectedExecutionException
+	 *             if the queue has been shutdown or the task was not admitted
+	 *
+	 * @see #execute(Runnable)
+	 */
+	protected void enqueue(Task task) {
+		PoolWorker worker = current.get();
+
+		if (stopped || (shutdown && worker == null)) {
+			metrics.taskRejected();
+			throw new RejectedExecutionException("Work queue has been shutdown.");
+		}
+
+		// lock-free, so tracking pending work does not add any locking
+		pending.incrementAndGet();
+		boolean admitted;
+
+		try {
+			admitted = admit(task, worker != null);
+		}
+		catch (RejectedExecutionException e) {
+			finished();
+			metrics.taskRejected();
+			throw e;
+		}
+
+		if (!admitted) {
+			metrics.taskBypassed();
+			runTask(task.runnable);
+			return;
+		}
+
+		if (worker != null && push(worker.id, task)) {
+			metrics.taskQueued();
+			signal(1);
+			return;
+		}
+
+		lock.lock();
+
+		try {
+			// checked again while locked, since workers decide whether to
+			// exit after a shutdown while holding this same lock
+			if (stopped || (shutdown && worker == null)) {
+				removed(1);
+				finished();
+				metrics.taskRejected();
+				throw new RejectedExecutionException("Work queue has been shutdown.");
+			}
+
+			metrics.taskQueued();
+			queue.add(task);
+			wake(queue.size());
+			queued(1);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes up waiting workers for tasks kept outside of the shared queue.
+	 * Only locks if some worker is waiting for work.
+	 *
+	 * @param count
+	 *            number of new tasks
+	 */
+	private void signal(int count) {
+		if (idle > 0) {
+			lock.lock();
+
+			try {
+				wake(count);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Records that a worker took a task that was waiting to be run.
+	 *
+	 * @param task
+	 *            task taken from the queue
+	 */
+	private void taken(Task task) {
+		removed(1);
+
+		long nanos = System.nanoTime() - task.queued;
+		metrics.taskTaken(nanos);
+		waited(nanos);
+	}
+
+	/**
+	 * Marks a task that was removed from the queue without being run as
+	 * finished.
+	 *
+	 * @param task
+	 *            task removed from the queue
+	 * @return the work request of the task
+	 */
+	private Runnable dropped(Task task) {
+		removed(1);
+		metrics.taskDropped();
+		finished();
+		return task.runnable;
+	}
+
+	/**
+	 * Runs a task, making sure an exception does not kill the calling thread.
+	 *
+	 * @param r
+	 *            task to run
+	 * @return true if the task did not throw an exception
+	 */
+	private boolean run(Runnable r) {
+		try {
+			r.run();
+			return true;
+		}
+		catch (RuntimeException ex) {
+			// catch runtime exceptions to avoid leaking threads
+			log.warn("Work queue encountered an exception while running {}.", r);
+			log.catching(Level.DEBUG, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Runs a task in the submitting thread and marks the task as finished.
+	 *
+	 * @param r
+	 *            task to run
+	 */
+	private void runTask(Runnable r) {
+		long start = System.nanoTime();
+		boolean success = false;
+
+		try {
+			success = run(r);
+		}
+		finally {
+			metrics.taskCompleted(System.nanoTime() - start, success);
+			finished();
+		}
+	}
+
+	/**
+	 * Runs a task in a worker thread where the watchdog can see it, and marks
+	 * the task as finished unless the watchdog already gave up on it.
+	 *
+	 * @param worker
+	 *            worker running the task
+	 * @param task
+	 *            task to run
+	 * @return false if the task ran past its timeout and the worker was
+	 *         replaced, in which case the worker should exit
+	 */
+	private boolean runTask(PoolWorker worker, Task task) {
+		long start = System.nanoTime();
+		boolean success = false;
+		boolean replaced = false;
+
+		// set before the task so the watchdog never sees an older start time
+		worker.started = start;
+		worker.running.set(task);
+
+		try {
+			success = run(task.runnable);
+		}
+		finally {
+			if (worker.running.compareAndSet(task, null)) {
+				metrics.taskCompleted(System.nanoTime() - start, success);
+				finished();
+			}
+			else {
+				replaced = true;
+			}
+
+			// clear any interrupt meant for this task only
+			if (!stopped) {
+				Thread.interrupted();
+			}
+		}
+
+		return !replaced;
+	}
+
+	/**
+	 * Makes sure the watchdog is checking for stuck tasks often enough for the
+	 * specified timeout.
+	 *
+	 * @param timeout
+	 *            nanoseconds a task may run
+	 */
+	private void watch(long timeout) {
+		watchdog.every(Math.max(1, Math.min(WATCH_PERIOD, TimeUnit.NANOSECONDS.toMillis(timeout) / 2)));
+	}
+
+	/**
+	 * Called periodically by the watchdog to find tasks that have run past
+	 * their timeout. Each one is logged, cancelled, and interrupted, and its
+	 * worker is replaced by a new worker.
+	 */
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+
+		for (PoolWorker worker : workers) {
+			// read the task first, so the start time is never older
+			Task task = worker.running.get();
+
+			if (task == null) {
+				continue;
+			}
+
+			long limit = task.timeout > 0 ? task.timeout : taskTimeout;
+			long elapsed = now - worker.started;
+
+			// the task may finish at the same time, so only one may win
+			if (limit <= 0 || elapsed < limit || !worker.running.compareAndSet(task, null)) {
+				continue;
+			}
+
+			log.warn("Work queue interrupted {} after running for {}ms; replacing worker {}.", task.runnable,
+					TimeUnit.NANOSECONDS.toMillis(elapsed), worker.id);
+
+			if (task.runnable instanceof Future) {
+				((Future<?>) task.runnable).cancel(true);
+			}
+
+			worker.thread.interrupt();
+			replaceWorker(worker);
+
+			metrics.taskTimedOut(elapsed);
+			finished();
+		}
+	}
+
+	/**
+	 * Replaces a worker stuck on a task with a new worker. The new worker
+	 * reuses the index of the stuck worker, so it also takes over any tasks a
+	 * subclass kept for that index.
+	 *
+	 * @param worker
+	 *            worker to replace
+	 */
+	private void replaceWorker(PoolWorker worker) {
+		lock.lock();
+
+		try {
+			removeWorker(worker);
+			addWorker();
+			wake(queue.size());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indicates a task is no longer pending, and notifies any threads waiting
+	 * for the work queue to finish if there is no more pending work.
+	 */
+	private void finished() {
+		finished(1);
+	}
+
+	/**
+	 * Indicates several tasks are no longer pending, and notifies any threads
+	 * waiting for the work queue to finish if there is no more pending work.
+	 *
+	 * @param count
+	 *            number of tasks no longer pending
+	 */
+	private void finished(int count) {
+		// only lock when there is no more pending work and some thread is
+		// waiting for that (or the idle workers may exit after a shutdown)
+		if (pending.addAndGet(-count) == 0 && (finishing > 0 || shutdown)) {
+			lock.lock();
+
+			try {
+				quiet.signalAll();
+
+				if (shutdown) {
+					available.signalAll();
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Wakes up enough waiting workers to handle the specified number of
+	 * waiting tasks, counting workers that were already signaled but have not
+	 * woken up yet. Each signal wakes up exactly one worker, unlike
+	 * {@code notifyAll()}, and woken workers pass the signal along if there
+	 * is still work left. Must be called while locked.
+	 *
+	 * @param backlog
+	 *            number of tasks waiting to be run
+	 */
+	private void wake(int backlog) {
+		assert lock.isHeldByCurrentThread();
+
+		int wanted = Math.min(backlog, idle) - waking;
+
+		for (int i = 0; i < wanted; i++) {
+			waking++;
+			available.signal();
+		}
+	}
+
+	/**
+	 * Removes an exiting worker thread. Must be called while locked.
+	 *
+	 * @param worker
+	 *            worker to remove
+	 */
+	private void removeWorker(PoolWorker worker) {
+		assert lock.isHeldByCurrentThread();
+
+		PoolWorker[] current = workers;
+		PoolWorker[] updated = new PoolWorker[current.length - 1];
+		int index = 0;
+
+		for (PoolWorker other : current) {
+			if (other != worker) {
+				updated[index++] = other;
+			}
+		}
+
+		workers = updated;
+		ids.clear(worker.id);
+		checkTerminated();
+	}
+
+	/**
+	 * Stops the watchdog and calls {@link #terminated()} once the queue is
+	 * shutdown and the last worker has exited. Must be called while locked.
+	 */
+	private void checkTerminated() {
+		assert lock.isHeldByCurrentThread();
+
+		if (shutdown && workers.length == 0 && !terminated) {
+			terminated = true;
+			watchdog.cancel();
+			terminated();
+		}
+	}
+
+	/**
+	 * Returns whether the queue is shutdown and all of the work is finished,
+	 * in which case the worker threads may exit.
+	 *
+	 * @return true if there is no more work to do after a shutdown
+	 */
+	private boolean drained() {
+		return shutdown && pending.get() == 0;
+	}
+
+	/**
+	 * A work request along with when it was added to the queue and how long it
+	 * may run.
+	 */
+	protected static class Task {
+
+		/** The work request to run. */
+		protected final Runnable runnable;
+
+		/** When the work request was submitted, in nanoseconds. */
+		protected final long queued;
+
+		/** Nanoseconds the work request may run, or 0 to use the default. */
+		protected final long timeout;
+
+		/**
+		 * Initializes a task for the work request submitted now.
+		 *
+		 * @param runnable
+		 *            work request
+		 * @param timeout
+		 *            nanoseconds the work request may run, or 0 to use the
+		 *            timeout of the work queue
+		 */
+		public Task(Runnable runnable, long timeout) {
+			this.runnable = runnable;
+			this.queued = System.nanoTime();
+			this.timeout = timeout;
+		}
+	}
+
 	/**
 	 * Waits until work is available in the work queue. When work is found, will
 	 * remove the work from the queue and run it. If a shutdown is detected,
-	 * will exit instead of grabbing new work from the queue. These threads will
-	 * continue running in the background until a shutdown is requested.
+	 * will exit once there is no more pending work. If an immediate shutdown is
+	 * detected, will exit instead of grabbing new work from the queue. These
+	 * threads will continue running in the background until a shutdown is
+	 * requested.
 	 */
-	private class PoolWorker extends Thread {
+	private class PoolWorker implements Runnable {
+
+		/** Thread running this worker. */
+		private final Thread thread;
+
+		/** Index of this worker, used for per-worker metrics. */
+		private final int id;
+
+		/** Task being run, or null. Cleared by the watchdog if stuck. */
+		private final AtomicReference<Task> running = new AtomicReference<>();
+
+		/** When the current task started running, in nanoseconds. */
+		private volatile long started;
+
+		/**
+		 * Initializes a worker thread with the specified index.
+		 *
+		 * @param id
+		 *            index of this worker
+		 */
+		public PoolWorker(int id) {
+			this.id = id;
+			this.thread = newThread(this);
+		}
 
 		@Override
 		public void run() {
-			Runnable r = null;
+			Task task = null;
+			boolean retire = false;
+
+			current.set(this);
+
+			while (!stopped) {
+				task = poll(id);
+
+				if (task == null) {
+					lock.lock();
+
+					try {
+						idle++;
+						long start = System.nanoTime();
+						boolean waited = false;
+
+						while (queue.isEmpty() && !hasLocalWork() && !stopped && !drained()) {
+							waited = true;
+							long remaining = keepAlive() - (System.nanoTime() - start);
 
-			while (true) {
-				synchronized (queue) {
-					while (queue.isEmpty() && !shutdown) {
-						try {
-							queue.wait();
+							if (remaining <= 0) {
+								// remove right away so other idle workers see
+								// the updated count
+								removeWorker(this);
+								retire = true;
+								break;
+							}
+
+							try {
+								available.awaitNanos(remaining);
+							}
+							catch (InterruptedException ex) {
+								if (!stopped) {
+									log.warn("Work queue interrupted while waiting.");
+								}
+
+								Thread.currentThread().interrupt();
+							}
+
+							// may also be a timeout or spurious wakeup, but
+							// then the count is only a little too low for now
+							if (waking > 0) {
+								waking--;
+							}
 						}
-						catch (InterruptedException ex) {
-							System.err.println("Warning: Work queue interrupted " + "while waiting.");
-							Thread.currentThread().interrupt();
+
+						idle--;
+
+						if (waited) {
+							metrics.workerIdled(id, System.nanoTime() - start);
 						}
-					}
 
-					// exit while for one of two reasons:
-					// (a) queue has work, or (b) shutdown has been called
+						// exit while for one of four reasons: (a) queue has
+						// work, (b) work is kept outside the queue, (c)
+						// shutdown has been called and there is nothing left
+						// to do, or (d) this worker has been idle for too long
+
+						if (stopped || retire || (queue.isEmpty() && drained())) {
+							break;
+						}
+
+						task = queue.poll();
 
-					if (shutdown) {
-						break;
+						// pass the signal along if there is more work left
+						wake(queue.isEmpty() && hasLocalWork() ? 1 : queue.size());
 					}
-					else {
-						r = queue.removeFirst();
+					finally {
+						lock.unlock();
 					}
+
+					if (task == null) {
+						// another worker may have gotten there first
+						task = steal(id);
+
+						if (task == null) {
+							continue;
+						}
+					}
+				}
+
+				taken(task);
+
+				if (!runTask(this, task)) {
+					// the watchdog already replaced this worker
+					retire = true;
+					break;
 				}
+			}
+
+			if (stopped) {
+				// tasks kept for this worker after shutdownNow() emptied it
+				while ((task = poll(id)) != null) {
+					log.warn("Work queue dropped {} after shutdown.", dropped(task));
+				}
+			}
+
+			if (!retire) {
+				lock.lock();
 
 				try {
-					r.run();
+					removeWorker(this);
 				}
-				catch (RuntimeException ex) {
-					// catch runtime exceptions to avoid leaking threads
-					System.err.println("Warning: Work queue encountered an " + "exception while running.");
+				finally {
+					lock.unlock();
 				}
 			}
 		}
@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Lets a task split its work into child tasks on a {@link WorkQueue} and then
+ * combine their results, in the style of fork/join. Each scope only keeps
+ * track of its own children, so there is no need for a counter shared by every
+ * task to know when the work is done. Instead, results are combined from the
+ * bottom up as each parent joins its children.
+ *
+ * A scope should only be used by the thread that created it (usually the
+ * parent task), and {@link #join()} should be called once all of the children
+ * are forked. The children may create scopes of their own.
+ *
+ * @param <V>
+ *            type of result returned by the child tasks
+ *
+ * @see WorkQueue#scope()
+ */
+public class WorkScope<V> {
+
+	/** Work queue to run the child tasks. */
+	private final WorkQueue queue;
+
+	/** Results of the child tasks, in the order forked. */
+	private final ArrayList<WorkFuture<V>> children;
+
+	/**
+	 * Initializes an empty scope for the specified work queue.
+	 *
+	 * @param queue
+	 *            work queue to run the child tasks
+	 */
+	public WorkScope(WorkQueue queue) {
+		this.queue = queue;
+		this.children = new ArrayList<>();
+	}
+
+	/**
+	 * Submits a child task to the work queue.
+	 *
+	 * @param task
+	 *            child task
+	 * @return result of the child task
+	 */
+	public WorkFuture<V> fork(Callable<? extends V> task) {
+		WorkFuture<V> child = queue.submit(task);
+		children.add(child);
+		return child;
+	}
+
+	/**
+	 * Submits several child tasks to the work queue at once.
+	 *
+	 * @param tasks
+	 *            child tasks
+	 *
+	 * @see WorkQueue#executeAll(Collection)
+	 */
+	public void forkAll(Collection<? extends Callable<? extends V>> tasks) {
+		ArrayList<WorkFuture<V>> batch = new ArrayList<>(tasks.size());
+
+		for (Callable<? extends V> task : tasks) {
+			batch.add(new WorkFuture<V>(task));
+		}
+
+		children.addAll(batch);
+		queue.executeAll(batch);
+	}
+
+	/**
+	 * Returns the number of child tasks forked so far.
+	 *
+	 * @return number of child tasks
+	 */
+	public int size() {
+		return children.size();
+	}
+
+	/**
+	 * Waits for every child task to finish and returns their results, in the
+	 * order the tasks were forked. Children are joined newest first, since
+	 * those are the least likely to have been started by a worker yet, so
+	 * the calling thread runs them itself instead of waiting. If any child
+	 * fails, the children that have not started yet are cancelled.
+	 *
+	 * @return results of the child tasks
+	 * @throws CancellationException
+	 *             if a child task was cancelled
+	 * @throws CompletionException
+	 *             if a child task threw an exception, or if interrupted while
+	 *             waiting
+	 *
+	 * @see WorkFuture#join()
+	 */
+	public List<V> join() {
+		List<V> results = new ArrayList<>(Collections.nCopies(children.size(), (V) null));
+
+		try {
+			for (int i = results.size() - 1; i >= 0; i--) {
+				results.set(i, children.get(i).join());
+			}
+		}
+		catch (CancellationException | CompletionException e) {
+			for (WorkFuture<V> child : children) {
+				child.cancel(false);
+			}
+
+			throw e;
+		}
+
+		return results;
+	}
+}